@@ -1,13 +1,41 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.concurrent.locks.*;
+import java.util.function.IntConsumer;
+import java.util.function.LongConsumer;
+import java.util.stream.IntStream;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 public class BankBalance {
 
+    // Common view over the account implementations, so main can switch between them
+    public interface Account {
+        boolean deposit(int amount);
+
+        boolean withdraw(int amount);
+
+        long balance();
+    }
+
     // Shared bank account
-    public static class BankAccount {
+    public static class BankAccount implements Account {
         private int balance;
         private final Lock lock = new ReentrantLock();
+        private final LockMetrics metrics = new LockMetrics();
 
         public BankAccount(int initialBalance) {
             this.balance = initialBalance;
@@ -15,12 +43,13 @@ public class BankBalance {
 
         public boolean deposit(int amount) {
             try {
-                if (lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                if (acquire(LockOp.DEPOSIT)) {
+                    long lockedAt = System.nanoTime();
                     try {
                         balance += amount;
                         return true;
                     } finally {
-                        lock.unlock();
+                        release(LockOp.DEPOSIT, lockedAt);
                     }
                 }
             } catch (InterruptedException e) {
@@ -31,7 +60,8 @@ public class BankBalance {
 
         public boolean withdraw(int amount) {
             try {
-                if (lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                if (acquire(LockOp.WITHDRAW)) {
+                    long lockedAt = System.nanoTime();
                     try {
                         if (balance >= amount) {
                             balance -= amount;
@@ -39,7 +69,7 @@ public class BankBalance {
                         }
                         return false;
                     } finally {
-                        lock.unlock();
+                        release(LockOp.WITHDRAW, lockedAt);
                     }
                 }
             } catch (InterruptedException e) {
@@ -50,11 +80,12 @@ public class BankBalance {
 
         public int getBalance() {
             try {
-                if (lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+                if (acquire(LockOp.BALANCE)) {
+                    long lockedAt = System.nanoTime();
                     try {
                         return balance;
                     } finally {
-                        lock.unlock();
+                        release(LockOp.BALANCE, lockedAt);
                     }
                 }
             } catch (InterruptedException e) {
@@ -62,6 +93,728 @@ public class BankBalance {
             }
             return balance;
         }
+
+        @Override
+        public long balance() {
+            return getBalance();
+        }
+
+        public LockMetrics metrics() {
+            return metrics;
+        }
+
+        private boolean acquire(LockOp op) throws InterruptedException {
+            LockWaitEvent event = new LockWaitEvent();
+            event.begin();
+            long start = System.nanoTime();
+            boolean acquired = false;
+            boolean interrupted = false;
+            try {
+                acquired = lock.tryLock(100, TimeUnit.MILLISECONDS);
+                return acquired;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                throw e;
+            } finally {
+                metrics.recordWait(op, System.nanoTime() - start, acquired, interrupted);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.operation = op.name();
+                    event.acquired = acquired;
+                    event.interrupted = interrupted;
+                    event.commit();
+                }
+            }
+        }
+
+        private void release(LockOp op, long lockedAt) {
+            lock.unlock();
+            metrics.recordHold(op, System.nanoTime() - lockedAt);
+        }
+    }
+
+    public enum LockOp {
+        DEPOSIT, WITHDRAW, BALANCE
+    }
+
+    // Shows up in JFR recordings, one event per lock attempt; acquired=false are the tryLock timeouts,
+    // unless interrupted=true
+    @Name("bank.LockWait")
+    @Label("Bank Account Lock Wait")
+    @Category("BankBalance")
+    static class LockWaitEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Acquired")
+        boolean acquired;
+
+        @Label("Interrupted")
+        boolean interrupted;
+    }
+
+    // Lock wait and hold times per operation type in power-of-two nanosecond buckets, plus acquisition,
+    // timeout and interrupt counts. Counters and histogram buckets are all LongAdders, so recording is a
+    // couple of striped adds: threads that land in the same bucket under contention do not share a CAS.
+    public static class LockMetrics {
+        static final int BUCKETS = 64;
+
+        private final long startNanos = System.nanoTime();
+        private final LongAdder[] acquired = adders(LockOp.values().length);
+        private final LongAdder[] timeouts = adders(LockOp.values().length);
+        private final LongAdder[] interrupts = adders(LockOp.values().length);
+        private final LongAdder[] waits = adders(LockOp.values().length * BUCKETS);
+        private final LongAdder[] holds = adders(LockOp.values().length * BUCKETS);
+
+        void recordWait(LockOp op, long nanos, boolean gotLock, boolean interrupted) {
+            (gotLock ? acquired : interrupted ? interrupts : timeouts)[op.ordinal()].increment();
+            waits[op.ordinal() * BUCKETS + bucket(nanos)].increment();
+        }
+
+        void recordHold(LockOp op, long nanos) {
+            holds[op.ordinal() * BUCKETS + bucket(nanos)].increment();
+        }
+
+        public MetricsSnapshot snapshot() {
+            Map<LockOp, OpStats> ops = new EnumMap<>(LockOp.class);
+            for (LockOp op : LockOp.values()) {
+                long[] waitCounts = new long[BUCKETS];
+                long[] holdCounts = new long[BUCKETS];
+                for (int b = 0; b < BUCKETS; b++) {
+                    waitCounts[b] = waits[op.ordinal() * BUCKETS + b].sum();
+                    holdCounts[b] = holds[op.ordinal() * BUCKETS + b].sum();
+                }
+                ops.put(op, new OpStats(acquired[op.ordinal()].sum(), timeouts[op.ordinal()].sum(),
+                        interrupts[op.ordinal()].sum(), waitCounts, holdCounts));
+            }
+            return new MetricsSnapshot(System.nanoTime() - startNanos, ops);
+        }
+
+        private static int bucket(long nanos) {
+            return nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos) - 1;
+        }
+
+        private static LongAdder[] adders(int count) {
+            LongAdder[] adders = new LongAdder[count];
+            for (int i = 0; i < adders.length; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+    }
+
+    public static class OpStats {
+        public final long acquired;
+        public final long timeouts;
+        public final long interrupts;
+        private final long[] waitHistogram;
+        private final long[] holdHistogram;
+
+        OpStats(long acquired, long timeouts, long interrupts, long[] waitHistogram, long[] holdHistogram) {
+            this.acquired = acquired;
+            this.timeouts = timeouts;
+            this.interrupts = interrupts;
+            this.waitHistogram = waitHistogram;
+            this.holdHistogram = holdHistogram;
+        }
+
+        // Upper bound of the bucket holding the percentile, so at most 2x off
+        public long waitPercentileNanos(double percentile) {
+            return percentile(waitHistogram, percentile);
+        }
+
+        public long holdPercentileNanos(double percentile) {
+            return percentile(holdHistogram, percentile);
+        }
+
+        private static long percentile(long[] histogram, double percentile) {
+            long total = Arrays.stream(histogram).sum();
+            if (total == 0)
+                return 0;
+            long rank = (long) Math.ceil(total * percentile / 100.0);
+            long seen = 0;
+            for (int b = 0; b < histogram.length; b++) {
+                seen += histogram[b];
+                if (seen >= rank)
+                    return b == 63 ? Long.MAX_VALUE : (1L << (b + 1)) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    public static class MetricsSnapshot {
+        public final long elapsedNanos;
+        public final Map<LockOp, OpStats> ops;
+
+        MetricsSnapshot(long elapsedNanos, Map<LockOp, OpStats> ops) {
+            this.elapsedNanos = elapsedNanos;
+            this.ops = Collections.unmodifiableMap(ops);
+        }
+
+        public double throughputPerSecond() {
+            long completed = ops.values().stream().mapToLong(o -> o.acquired).sum();
+            return elapsedNanos == 0 ? 0 : completed * 1e9 / elapsedNanos;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("LOCK_METRICS elapsed=%dms throughput=%.1f/s%n",
+                    elapsedNanos / 1_000_000, throughputPerSecond()));
+            ops.forEach((op, stats) -> sb.append(String.format(
+                    "%s acquired=%d timeouts=%d interrupts=%d waitP50=%dns waitP99=%dns holdP50=%dns holdP99=%dns%n",
+                    op, stats.acquired, stats.timeouts, stats.interrupts,
+                    stats.waitPercentileNanos(50), stats.waitPercentileNanos(99),
+                    stats.holdPercentileNanos(50), stats.holdPercentileNanos(99))));
+            return sb.toString();
+        }
+    }
+
+    // Many accounts in one flat array. Deposits and withdrawals are CAS updates on a single slot,
+    // reads are plain volatile reads, and only transfers take locks (striped, always in stripe order,
+    // so two transfers in opposite directions can not deadlock).
+    public static class Ledger {
+        private static final int STRIPES = 1024; // power of two
+
+        private final AtomicLongArray balances;
+        private final ReentrantLock[] stripes;
+
+        public Ledger(int accounts, long initialBalance) {
+            if (accounts <= 0)
+                throw new IllegalArgumentException("accounts must be positive");
+            balances = new AtomicLongArray(accounts);
+            for (int i = 0; i < accounts; i++) {
+                balances.set(i, initialBalance);
+            }
+            int stripeCount = 1;
+            while (stripeCount < accounts && stripeCount < STRIPES) {
+                stripeCount <<= 1;
+            }
+            stripes = new ReentrantLock[stripeCount];
+            for (int i = 0; i < stripes.length; i++) {
+                stripes[i] = new ReentrantLock();
+            }
+        }
+
+        public int size() {
+            return balances.length();
+        }
+
+        public boolean deposit(int account, long amount) {
+            checkAmount(amount);
+            balances.getAndAdd(account, amount);
+            return true;
+        }
+
+        public boolean withdraw(int account, long amount) {
+            checkAmount(amount);
+            long current;
+            do {
+                current = balances.get(account);
+                if (current < amount)
+                    return false;
+            } while (!balances.compareAndSet(account, current, current - amount));
+            return true;
+        }
+
+        public long getBalance(int account) {
+            return balances.get(account);
+        }
+
+        public boolean transfer(int from, int to, long amount) {
+            checkAmount(amount);
+            if (from == to)
+                return getBalance(from) >= amount;
+
+            // Ordered by stripe index, not account id: accounts alias onto stripes, so ordering by id
+            // would let transfer(1, 1024) and transfer(0, 1025) take stripes 0 and 1 in opposite orders
+            int a = stripeOf(from), b = stripeOf(to);
+            int first = Math.min(a, b);
+            int second = Math.max(a, b);
+            stripes[first].lock();
+            if (second != first)
+                stripes[second].lock();
+            try {
+                if (!withdraw(from, amount))
+                    return false;
+                balances.getAndAdd(to, amount);
+                return true;
+            } finally {
+                if (second != first)
+                    stripes[second].unlock();
+                stripes[first].unlock();
+            }
+        }
+
+        // Holds every stripe, so no transfer is seen half applied (money left one account but not arrived)
+        public long totalBalance() {
+            for (ReentrantLock stripe : stripes) {
+                stripe.lock();
+            }
+            try {
+                long total = 0;
+                for (int i = 0; i < balances.length(); i++) {
+                    total += balances.get(i);
+                }
+                return total;
+            } finally {
+                for (int i = stripes.length - 1; i >= 0; i--) {
+                    stripes[i].unlock();
+                }
+            }
+        }
+
+        public Account account(int id) {
+            Objects.checkIndex(id, size());
+            return new Account() {
+                @Override
+                public boolean deposit(int amount) {
+                    return Ledger.this.deposit(id, amount);
+                }
+
+                @Override
+                public boolean withdraw(int amount) {
+                    return Ledger.this.withdraw(id, amount);
+                }
+
+                @Override
+                public long balance() {
+                    return getBalance(id);
+                }
+            };
+        }
+
+        private int stripeOf(int account) {
+            return account & (stripes.length - 1);
+        }
+
+        private static void checkAmount(long amount) {
+            if (amount < 0)
+                throw new IllegalArgumentException("amount must not be negative");
+        }
+    }
+
+    // Producers publish operations into a preallocated ring, a single writer thread owns the balance
+    // and applies everything that is published in one go, then hands the results back through the same slots.
+    // Every slot walks through: free (seq) -> published (seq + 1) -> completed (seq + 2) -> free (seq + capacity).
+    public static class OperationPipeline implements Account, AutoCloseable {
+        private static final int DEPOSIT = 0;
+        private static final int WITHDRAW = 1;
+
+        private final int capacity;
+        private final int mask;
+        private final AtomicLongArray states;
+        private final int[] types;
+        private final int[] amounts;
+        private final boolean[] results;
+        private final AtomicLong claimed = new AtomicLong();
+        private final AtomicInteger inside = new AtomicInteger(); // producers currently in execute()
+        private final Thread writer;
+
+        private long balance; // touched only by the writer thread
+        private volatile long publishedBalance;
+        private volatile boolean running = true;
+
+        public OperationPipeline(long initialBalance, int capacity) {
+            // A slot moves free (seq) -> published (seq + 1) -> completed (seq + 2) -> free (seq + capacity),
+            // so below 4 the completed state of one lap is the free state of the next
+            if (Integer.bitCount(capacity) != 1 || capacity < 4)
+                throw new IllegalArgumentException("capacity must be a power of two, at least 4");
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.states = new AtomicLongArray(capacity);
+            for (int i = 0; i < capacity; i++) {
+                states.set(i, i);
+            }
+            this.types = new int[capacity];
+            this.amounts = new int[capacity];
+            this.results = new boolean[capacity];
+            this.balance = initialBalance;
+            this.publishedBalance = initialBalance;
+            this.writer = new Thread(this::runWriter, "bank-pipeline-writer");
+            this.writer.setDaemon(true);
+            this.writer.start();
+        }
+
+        @Override
+        public boolean deposit(int amount) {
+            return execute(DEPOSIT, amount);
+        }
+
+        @Override
+        public boolean withdraw(int amount) {
+            return execute(WITHDRAW, amount);
+        }
+
+        public OperationResult submit(int operationId, boolean deposit, int amount) {
+            return new OperationResult(operationId, execute(deposit ? DEPOSIT : WITHDRAW, amount));
+        }
+
+        // Balance as of the last batch the writer finished
+        @Override
+        public long balance() {
+            return publishedBalance;
+        }
+
+        private boolean execute(int type, int amount) {
+            // Announce before checking running: the writer only stops once it has seen running == false
+            // and nobody inside, so a producer that gets past this check is always served
+            inside.incrementAndGet();
+            try {
+                if (!running)
+                    throw new IllegalStateException("pipeline is closed");
+                long seq = claimed.getAndIncrement();
+                int slot = (int) (seq & mask);
+
+                awaitState(slot, seq);
+                types[slot] = type;
+                amounts[slot] = amount;
+                states.set(slot, seq + 1); // publish, the volatile write makes the fields visible to the writer
+
+                awaitState(slot, seq + 2);
+                boolean result = results[slot];
+                states.set(slot, seq + capacity); // free for the next lap
+                return result;
+            } finally {
+                inside.decrementAndGet();
+            }
+        }
+
+        private void runWriter() {
+            long next = 0;
+            int idle = 0;
+            while (running || inside.get() > 0 || next < claimed.get()) {
+                long seq = next;
+                while (states.get((int) (seq & mask)) == seq + 1) {
+                    int slot = (int) (seq & mask);
+                    int amount = amounts[slot];
+                    if (types[slot] == DEPOSIT) {
+                        balance += amount;
+                        results[slot] = true;
+                    } else if (balance >= amount) {
+                        balance -= amount;
+                        results[slot] = true;
+                    } else {
+                        results[slot] = false;
+                    }
+                    seq++;
+                }
+                if (seq == next) {
+                    idle = backOff(idle);
+                    continue;
+                }
+                idle = 0;
+                publishedBalance = balance;
+                for (long done = next; done < seq; done++) {
+                    states.set((int) (done & mask), done + 2);
+                }
+                next = seq;
+            }
+        }
+
+        private void awaitState(int slot, long expected) {
+            int idle = 0;
+            while (states.get(slot) != expected) {
+                idle = backOff(idle);
+            }
+        }
+
+        private static int backOff(int idle) {
+            if (idle < 64) {
+                Thread.onSpinWait();
+            } else if (idle < 1024) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(10_000);
+            }
+            return idle + 1;
+        }
+
+        @Override
+        public void close() {
+            running = false;
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // Append-only journal of balance changes in a memory-mapped file. An append only copies 16 bytes into
+    // the mapping; durability is group committed: whoever first needs a record on disk forces the mapping
+    // once, and that covers every record appended before it.
+    public static class Journal implements AutoCloseable {
+        static final int RECORD_BYTES = 16; // long sequence, long delta
+
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        private final Object forceLock = new Object();
+        private int position;
+        private volatile long written;
+        private volatile long durable;
+
+        public Journal(Path file, int capacityRecords) throws IOException {
+            channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = Math.max(channel.size(), (long) capacityRecords * RECORD_BYTES);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size - size % RECORD_BYTES);
+        }
+
+        // Replays the records that continue right after afterSeq and returns the last replayed sequence.
+        // Records left over from before the last reset have older sequences, so replay stops at them.
+        public long replay(long afterSeq, LongConsumer deltas) {
+            long expected = afterSeq + 1;
+            int at = 0;
+            while (at + RECORD_BYTES <= buffer.capacity() && buffer.getLong(at) == expected) {
+                deltas.accept(buffer.getLong(at + 8));
+                expected++;
+                at += RECORD_BYTES;
+            }
+            position = at;
+            written = expected - 1;
+            durable = expected - 1;
+            return expected - 1;
+        }
+
+        public boolean hasRoom() {
+            return position + RECORD_BYTES <= buffer.capacity();
+        }
+
+        // Callers serialize appends and resets between themselves
+        public void append(long seq, long delta) {
+            buffer.putLong(position + 8, delta);
+            buffer.putLong(position, seq);
+            position += RECORD_BYTES;
+            written = seq;
+        }
+
+        public void awaitDurable(long seq) {
+            if (durable >= seq)
+                return;
+            synchronized (forceLock) {
+                if (durable >= seq)
+                    return;
+                long upTo = written;
+                buffer.force();
+                durable = upTo;
+            }
+        }
+
+        // Everything up to seq is covered by a snapshot, start writing from the beginning again
+        public void reset(long seq) {
+            synchronized (forceLock) {
+                position = 0;
+                written = Math.max(written, seq);
+                durable = Math.max(durable, seq);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            buffer.force();
+            channel.close();
+        }
+    }
+
+    // Account whose balance survives restarts: every change goes to the Journal, and a snapshot of the
+    // balance is written whenever the journal fills up, so a restart replays at most snapshotInterval records.
+    public static class DurableAccount implements Account, AutoCloseable {
+        private final Lock lock = new ReentrantLock();
+        private final Path snapshotFile;
+        private final Journal journal;
+        private long balance;
+        private long seq;
+
+        private DurableAccount(Path snapshotFile, Journal journal, long balance, long seq) {
+            this.snapshotFile = snapshotFile;
+            this.journal = journal;
+            this.balance = balance;
+            this.seq = seq;
+        }
+
+        // initialBalance only counts the first time dir is used: it is written as the seq-0 snapshot before the
+        // journal exists, and every later open recovers from the snapshot and journal alone
+        public static DurableAccount open(Path dir, long initialBalance, int snapshotInterval) throws IOException {
+            Files.createDirectories(dir);
+            Path snapshotFile = dir.resolve("snapshot.bin");
+            if (!Files.exists(snapshotFile))
+                writeSnapshot(snapshotFile, initialBalance, 0);
+
+            ByteBuffer snapshot = ByteBuffer.wrap(Files.readAllBytes(snapshotFile));
+            long balance = snapshot.getLong();
+            long seq = snapshot.getLong();
+
+            Journal journal = new Journal(dir.resolve("journal.bin"), snapshotInterval);
+            long[] replayed = {balance};
+            seq = journal.replay(seq, delta -> replayed[0] += delta);
+            return new DurableAccount(snapshotFile, journal, replayed[0], seq);
+        }
+
+        @Override
+        public boolean deposit(int amount) {
+            return apply(amount, false);
+        }
+
+        @Override
+        public boolean withdraw(int amount) {
+            return apply(-amount, true);
+        }
+
+        @Override
+        public long balance() {
+            lock.lock();
+            try {
+                return balance;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean apply(long delta, boolean checkFunds) {
+            long mySeq;
+            lock.lock();
+            try {
+                if (checkFunds && balance + delta < 0)
+                    return false;
+                if (!journal.hasRoom())
+                    snapshot();
+                mySeq = ++seq;
+                balance += delta;
+                journal.append(mySeq, delta);
+            } finally {
+                lock.unlock();
+            }
+            // outside the lock, so concurrent operations share one force
+            journal.awaitDurable(mySeq);
+            return true;
+        }
+
+        private void snapshot() {
+            try {
+                writeSnapshot(snapshotFile, balance, seq);
+                journal.reset(seq);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        private static void writeSnapshot(Path snapshotFile, long balance, long seq) throws IOException {
+            Path tmp = snapshotFile.resolveSibling("snapshot.tmp");
+            try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                out.write(ByteBuffer.allocate(16).putLong(balance).putLong(seq).flip());
+                out.force(true);
+            }
+            Files.move(tmp, snapshotFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        @Override
+        public void close() throws IOException {
+            journal.close();
+        }
+    }
+
+    // Replays a whole operation log with the same outcome as running it in order on one thread.
+    // Deposits always succeed, so only the withdrawals need the running balance. The log is cut into segments;
+    // for each one we compute in parallel its net change and the smallest opening balance that lets all of its
+    // withdrawals succeed. A sequential pass over the segments (not the operations) then finds every segment's
+    // opening balance: a segment that opens with enough is all successes, and only the ones that open short
+    // are walked operation by operation.
+    public static class ReplayEngine {
+        private final ForkJoinPool pool;
+        private final int segmentSize;
+
+        public ReplayEngine(ForkJoinPool pool, int segmentSize) {
+            if (segmentSize <= 0)
+                throw new IllegalArgumentException("segmentSize must be positive");
+            this.pool = pool;
+            this.segmentSize = segmentSize;
+        }
+
+        public static class Replay {
+            public final long finalBalance;
+            private final boolean[] success;
+
+            Replay(long finalBalance, boolean[] success) {
+                this.finalBalance = finalBalance;
+                this.success = success;
+            }
+
+            // index is zero based, operation ids start from 1
+            public boolean succeeded(int index) {
+                return success[index];
+            }
+
+            public List<OperationResult> results() {
+                List<OperationResult> results = new ArrayList<>(success.length);
+                for (int i = 0; i < success.length; i++) {
+                    results.add(new OperationResult(i + 1, success[i]));
+                }
+                return results;
+            }
+        }
+
+        public Replay replay(long initialBalance, boolean[] withdrawals, int[] amounts) throws InterruptedException {
+            int n = amounts.length;
+            int segments = (n + segmentSize - 1) / segmentSize;
+            long[] net = new long[segments];
+            long[] need = new long[segments];
+            boolean[] success = new boolean[n];
+
+            inParallel(segments, s -> {
+                long running = 0;
+                long required = Long.MIN_VALUE;
+                for (int i = s * segmentSize, end = Math.min(n, i + segmentSize); i < end; i++) {
+                    if (withdrawals[i]) {
+                        required = Math.max(required, amounts[i] - running);
+                        running -= amounts[i];
+                    } else {
+                        running += amounts[i];
+                    }
+                }
+                net[s] = running;
+                need[s] = required;
+            });
+
+            boolean[] allSucceed = new boolean[segments];
+            long balance = initialBalance;
+            for (int s = 0; s < segments; s++) {
+                if (balance >= need[s]) {
+                    allSucceed[s] = true;
+                    balance += net[s];
+                } else {
+                    balance = walk(balance, s, withdrawals, amounts, success);
+                }
+            }
+
+            inParallel(segments, s -> {
+                if (allSucceed[s])
+                    Arrays.fill(success, s * segmentSize, Math.min(n, (s + 1) * segmentSize), true);
+            });
+            return new Replay(balance, success);
+        }
+
+        private long walk(long balance, int segment, boolean[] withdrawals, int[] amounts, boolean[] success) {
+            for (int i = segment * segmentSize, end = Math.min(amounts.length, i + segmentSize); i < end; i++) {
+                if (!withdrawals[i]) {
+                    balance += amounts[i];
+                    success[i] = true;
+                } else if (balance >= amounts[i]) {
+                    balance -= amounts[i];
+                    success[i] = true;
+                }
+            }
+            return balance;
+        }
+
+        private void inParallel(int segments, IntConsumer body) throws InterruptedException {
+            try {
+                pool.submit(() -> IntStream.range(0, segments).parallel().forEach(body)).get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException(e.getCause());
+            }
+        }
     }
 
     // Operation result
@@ -81,7 +834,40 @@ public class BankBalance {
         int initialBalance = sc.nextInt();
         int n = sc.nextInt(); // number of operations
 
-        BankAccount account = new BankAccount(initialBalance);
+        // "replay" skips the threads and computes the in-order outcome with the ReplayEngine,
+        // "ledger" runs the same operations against account 0 of a lock-free Ledger,
+        // "pipeline" hands them to the single writer of an OperationPipeline,
+        // "durable <dir>" keeps the balance in a journal + snapshot under dir and continues from it on restart
+        // (the initial balance read here only seeds a new dir)
+        String mode = args.length > 0 ? args[0] : "lock";
+        if (mode.equals("replay")) {
+            boolean[] withdrawals = new boolean[n];
+            int[] amounts = new int[n];
+            for (int i = 0; i < n; i++) {
+                withdrawals[i] = !sc.next().equals("deposit");
+                amounts[i] = sc.nextInt();
+            }
+            ReplayEngine.Replay replay = new ReplayEngine(ForkJoinPool.commonPool(), 1 << 16)
+                    .replay(initialBalance, withdrawals, amounts);
+            System.out.println("FINAL_BALANCE " + replay.finalBalance);
+            return;
+        }
+
+        Account account;
+        switch (mode) {
+            case "ledger":
+                account = new Ledger(1, initialBalance).account(0);
+                break;
+            case "pipeline":
+                account = new OperationPipeline(initialBalance, 1024);
+                break;
+            case "durable":
+                account = DurableAccount.open(Paths.get(args.length > 1 ? args[1] : "bank-journal"),
+                        initialBalance, 4096);
+                break;
+            default:
+                account = new BankAccount(initialBalance);
+        }
 
         List<Callable<OperationResult>> tasks = new ArrayList<>();
 
@@ -114,8 +900,14 @@ public class BankBalance {
         }
 
         executor.shutdown();
+        if (account instanceof AutoCloseable)
+            ((AutoCloseable) account).close();
 
         // Deterministic final balance
-        System.out.println("FINAL_BALANCE " + account.getBalance());
+        System.out.println("FINAL_BALANCE " + account.balance());
+
+        // -Dbank.metrics prints the lock telemetry, on stderr so the expected output stays the same
+        if (System.getProperty("bank.metrics") != null && account instanceof BankAccount)
+            System.err.print(((BankAccount) account).metrics().snapshot());
     }
 }
@@ -0,0 +1,357 @@
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+
+// Drives the different account strategies with the same random deposit/withdraw mix and prints
+// throughput and latency percentiles per strategy and thread count.
+//
+// Usage: java BankBalanceBenchmark [threads=1,2,4,8,16,32,64] [accounts=1] [depositPercent=50]
+//                                  [seconds=3] [warmupSeconds=1] [strategies=tryLock,tryLockMetrics,...]
+public class BankBalanceBenchmark {
+
+    interface Strategy {
+        boolean deposit(int account, int amount);
+
+        boolean withdraw(int account, int amount);
+    }
+
+    // The same timed tryLock as BankBalance.BankAccount, without its lock telemetry, so it is as bare as the
+    // other strategies
+    static class TryLockStrategy implements Strategy {
+        private final long[] balances;
+        private final ReentrantLock[] locks;
+
+        TryLockStrategy(int accounts, int initialBalance) {
+            balances = new long[accounts];
+            Arrays.fill(balances, initialBalance);
+            locks = new ReentrantLock[accounts];
+            for (int i = 0; i < accounts; i++) {
+                locks[i] = new ReentrantLock();
+            }
+        }
+
+        public boolean deposit(int account, int amount) {
+            if (!tryLock(account))
+                return false;
+            try {
+                balances[account] += amount;
+                return true;
+            } finally {
+                locks[account].unlock();
+            }
+        }
+
+        public boolean withdraw(int account, int amount) {
+            if (!tryLock(account))
+                return false;
+            try {
+                if (balances[account] < amount)
+                    return false;
+                balances[account] -= amount;
+                return true;
+            } finally {
+                locks[account].unlock();
+            }
+        }
+
+        private boolean tryLock(int account) {
+            try {
+                return locks[account].tryLock(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    // One BankBalance.BankAccount per account id, lock telemetry included; next to "tryLock" it shows what
+    // the telemetry costs
+    static class InstrumentedTryLockStrategy implements Strategy {
+        private final BankBalance.BankAccount[] accounts;
+
+        InstrumentedTryLockStrategy(int accounts, int initialBalance) {
+            this.accounts = new BankBalance.BankAccount[accounts];
+            for (int i = 0; i < accounts; i++) {
+                this.accounts[i] = new BankBalance.BankAccount(initialBalance);
+            }
+        }
+
+        public boolean deposit(int account, int amount) {
+            return accounts[account].deposit(amount);
+        }
+
+        public boolean withdraw(int account, int amount) {
+            return accounts[account].withdraw(amount);
+        }
+    }
+
+    // One monitor per account, like the tryLock strategy, so only operations on the same account contend
+    static class SynchronizedStrategy implements Strategy {
+        private final long[] balances;
+        private final Object[] monitors;
+
+        SynchronizedStrategy(int accounts, int initialBalance) {
+            balances = new long[accounts];
+            Arrays.fill(balances, initialBalance);
+            monitors = new Object[accounts];
+            for (int i = 0; i < accounts; i++) {
+                monitors[i] = new Object();
+            }
+        }
+
+        public boolean deposit(int account, int amount) {
+            synchronized (monitors[account]) {
+                balances[account] += amount;
+                return true;
+            }
+        }
+
+        public boolean withdraw(int account, int amount) {
+            synchronized (monitors[account]) {
+                if (balances[account] < amount)
+                    return false;
+                balances[account] -= amount;
+                return true;
+            }
+        }
+    }
+
+    // One StampedLock per account. Optimistic read for the funds check, upgraded to a write lock only
+    // when the withdrawal goes through
+    static class StampedLockStrategy implements Strategy {
+        private final long[] balances;
+        private final StampedLock[] locks;
+
+        StampedLockStrategy(int accounts, int initialBalance) {
+            balances = new long[accounts];
+            Arrays.fill(balances, initialBalance);
+            locks = new StampedLock[accounts];
+            for (int i = 0; i < accounts; i++) {
+                locks[i] = new StampedLock();
+            }
+        }
+
+        public boolean deposit(int account, int amount) {
+            StampedLock lock = locks[account];
+            long stamp = lock.writeLock();
+            try {
+                balances[account] += amount;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+
+        public boolean withdraw(int account, int amount) {
+            StampedLock lock = locks[account];
+            long stamp = lock.tryOptimisticRead();
+            long current = balances[account];
+            if (lock.validate(stamp) && current < amount)
+                return false;
+            stamp = lock.writeLock();
+            try {
+                if (balances[account] < amount)
+                    return false;
+                balances[account] -= amount;
+                return true;
+            } finally {
+                lock.unlockWrite(stamp);
+            }
+        }
+    }
+
+    static class AtomicStrategy implements Strategy {
+        private final AtomicLong[] balances;
+
+        AtomicStrategy(int accounts, int initialBalance) {
+            balances = new AtomicLong[accounts];
+            for (int i = 0; i < accounts; i++) {
+                balances[i] = new AtomicLong(initialBalance);
+            }
+        }
+
+        public boolean deposit(int account, int amount) {
+            balances[account].addAndGet(amount);
+            return true;
+        }
+
+        public boolean withdraw(int account, int amount) {
+            AtomicLong balance = balances[account];
+            long current;
+            do {
+                current = balance.get();
+                if (current < amount)
+                    return false;
+            } while (!balance.compareAndSet(current, current - amount));
+            return true;
+        }
+    }
+
+    // Fastest deposits, but sum() is not atomic with the add, so a withdrawal racing with another one
+    // can overdraw. It is here to show the ceiling, not as a correct account.
+    static class LongAdderStrategy implements Strategy {
+        private final LongAdder[] balances;
+
+        LongAdderStrategy(int accounts, int initialBalance) {
+            balances = new LongAdder[accounts];
+            for (int i = 0; i < accounts; i++) {
+                balances[i] = new LongAdder();
+                balances[i].add(initialBalance);
+            }
+        }
+
+        public boolean deposit(int account, int amount) {
+            balances[account].add(amount);
+            return true;
+        }
+
+        public boolean withdraw(int account, int amount) {
+            if (balances[account].sum() < amount)
+                return false;
+            balances[account].add(-amount);
+            return true;
+        }
+    }
+
+    static class LedgerStrategy implements Strategy {
+        private final BankBalance.Ledger ledger;
+
+        LedgerStrategy(int accounts, int initialBalance) {
+            ledger = new BankBalance.Ledger(accounts, initialBalance);
+        }
+
+        public boolean deposit(int account, int amount) {
+            return ledger.deposit(account, amount);
+        }
+
+        public boolean withdraw(int account, int amount) {
+            return ledger.withdraw(account, amount);
+        }
+    }
+
+    static Strategy create(String name, int accounts, int initialBalance) {
+        switch (name) {
+            case "tryLock":
+                return new TryLockStrategy(accounts, initialBalance);
+            case "tryLockMetrics":
+                return new InstrumentedTryLockStrategy(accounts, initialBalance);
+            case "synchronized":
+                return new SynchronizedStrategy(accounts, initialBalance);
+            case "stamped":
+                return new StampedLockStrategy(accounts, initialBalance);
+            case "atomic":
+                return new AtomicStrategy(accounts, initialBalance);
+            case "longAdder":
+                return new LongAdderStrategy(accounts, initialBalance);
+            case "ledger":
+                return new LedgerStrategy(accounts, initialBalance);
+            default:
+                throw new IllegalArgumentException("Unknown strategy: " + name);
+        }
+    }
+
+    // Latencies in power-of-two nanosecond buckets, one per thread and merged at the end
+    static class Histogram {
+        final long[] counts = new long[64];
+
+        void record(long nanos) {
+            counts[nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos)]++;
+        }
+
+        void add(Histogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+        }
+
+        long total() {
+            return Arrays.stream(counts).sum();
+        }
+
+        long percentile(double p) {
+            long rank = (long) Math.ceil(total() * p / 100.0);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank)
+                    return (1L << Math.min(i + 1, 62)) - 1;
+            }
+            return Long.MAX_VALUE;
+        }
+    }
+
+    static Histogram run(Strategy strategy, int threads, int accounts, int depositPercent, long nanos)
+            throws InterruptedException {
+        CountDownLatch start = new CountDownLatch(1);
+        Histogram[] perThread = new Histogram[threads];
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Histogram histogram = perThread[t] = new Histogram();
+            workers[t] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long deadline = System.nanoTime() + nanos;
+                long now;
+                do {
+                    int account = accounts == 1 ? 0 : random.nextInt(accounts);
+                    int amount = random.nextInt(1, 100);
+                    long begin = System.nanoTime();
+                    if (random.nextInt(100) < depositPercent) {
+                        strategy.deposit(account, amount);
+                    } else {
+                        strategy.withdraw(account, amount);
+                    }
+                    now = System.nanoTime();
+                    histogram.record(now - begin);
+                } while (now < deadline);
+            });
+            workers[t].start();
+        }
+        start.countDown();
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Histogram merged = new Histogram();
+        for (Histogram histogram : perThread) {
+            merged.add(histogram);
+        }
+        return merged;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        int[] threadCounts = Arrays.stream(options.getOrDefault("threads", "1,2,4,8,16,32,64").split(","))
+                .mapToInt(Integer::parseInt).toArray();
+        int accounts = Integer.parseInt(options.getOrDefault("accounts", "1"));
+        int depositPercent = Integer.parseInt(options.getOrDefault("depositPercent", "50"));
+        long nanos = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("seconds", "3")));
+        long warmup = TimeUnit.SECONDS.toNanos(Long.parseLong(options.getOrDefault("warmupSeconds", "1")));
+        String[] strategies = options.getOrDefault("strategies",
+                "tryLock,tryLockMetrics,synchronized,stamped,atomic,longAdder,ledger").split(",");
+
+        System.out.printf("%-15s %7s %14s %10s %10s %10s%n",
+                "strategy", "threads", "ops/s", "p50(ns)", "p99(ns)", "p999(ns)");
+        for (String name : strategies) {
+            for (int threads : threadCounts) {
+                Strategy strategy = create(name, accounts, 1_000_000);
+                run(strategy, threads, accounts, depositPercent, warmup);
+                Histogram histogram = run(strategy, threads, accounts, depositPercent, nanos);
+                System.out.printf("%-15s %7d %14.0f %10d %10d %10d%n",
+                        name, threads, histogram.total() * 1e9 / nanos,
+                        histogram.percentile(50), histogram.percentile(99), histogram.percentile(99.9));
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+// Reopens a BankBalance.DurableAccount with a different initial balance each time, before and after the
+// journal has filled up and forced a snapshot. The recovered balance must only depend on what is on disk:
+// the initial balance passed to open() counts for a new directory and is ignored afterwards.
+//
+// Usage: java DurableAccountTest
+public class DurableAccountTest {
+    private static final int SNAPSHOT_INTERVAL = 8;
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Files.createTempDirectory("durable-account");
+        try {
+            BankBalance.DurableAccount account = BankBalance.DurableAccount.open(dir, 100, SNAPSHOT_INTERVAL);
+            account.deposit(1);
+            account.close();
+            expect("reopen from the journal only", dir, 500, 101);
+
+            // more operations than the journal holds, so a snapshot gets written and the journal restarts
+            account = BankBalance.DurableAccount.open(dir, 7, SNAPSHOT_INTERVAL);
+            for (int i = 0; i < 3 * SNAPSHOT_INTERVAL; i++) {
+                account.deposit(1);
+            }
+            if (!account.withdraw(5) || account.withdraw(1_000_000))
+                fail("withdrawals against " + account.balance());
+            account.close();
+            long expected = 101 + 3 * SNAPSHOT_INTERVAL - 5;
+            expect("reopen from snapshot and journal", dir, 100, expected);
+            expect("reopen again", dir, 0, expected);
+        } finally {
+            try (Stream<Path> files = Files.walk(dir)) {
+                files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+            }
+        }
+        System.out.println("OK");
+    }
+
+    private static void expect(String what, Path dir, long initialBalance, long expected) throws IOException {
+        BankBalance.DurableAccount account = BankBalance.DurableAccount.open(dir, initialBalance, SNAPSHOT_INTERVAL);
+        long balance = account.balance();
+        account.close();
+        if (balance != expected)
+            fail(what + ": balance " + balance + " != " + expected);
+    }
+
+    private static void fail(String message) {
+        System.out.println(message);
+        System.exit(1);
+    }
+}
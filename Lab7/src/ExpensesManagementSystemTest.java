@@ -2,7 +2,6 @@ import java.time.Duration;
 import java.time.LocalDateTime;
 import java.time.temporal.ChronoUnit;
 import java.util.*;
-import java.util.function.BiPredicate;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
@@ -49,11 +48,13 @@ class Employee {
 class Item {
     String name;
     String category;
+    int categoryId;
     double price;
 
     public Item(String name, String category, double price) {
         this.name = name;
         this.category = category;
+        this.categoryId = RefundPolicy.categoryId(category);
         this.price = price;
     }
 
@@ -148,6 +149,44 @@ class DailyExpensesPerCountry {
 }
 
 
+class RefundPolicy {
+    // Вработените од ниво IC имаат право да купуваат само ставки од категориите food и non-alcohol beverage.
+    // Вработените од ниво M имаат право и на ставки од категориите transport и alcohol beverage.
+    // Вработените од ниво C немаат ограничувања на категории.
+    // Categories are turned into ids once, when the Item is created, and every level gets a bitmask of the
+    // category ids it may be refunded for, so the check is one AND.
+    static final int FOOD = 0;
+    static final int NON_ALCOHOL_BEVERAGE = 1;
+    static final int TRANSPORT = 2;
+    static final int ALCOHOL_BEVERAGE = 3;
+    static final int OTHER = 63;
+
+    private static final Map<String, Integer> CATEGORY_IDS = new HashMap<>();
+    private static final long[] ALLOWED = new long[Level.values().length];
+
+    static {
+        CATEGORY_IDS.put("food", FOOD);
+        CATEGORY_IDS.put("non-alcohol beverage", NON_ALCOHOL_BEVERAGE);
+        CATEGORY_IDS.put("transport", TRANSPORT);
+        CATEGORY_IDS.put("alcohol beverage", ALCOHOL_BEVERAGE);
+
+        ALLOWED[Level.IC.ordinal()] = bit(FOOD) | bit(NON_ALCOHOL_BEVERAGE);
+        ALLOWED[Level.M.ordinal()] = ALLOWED[Level.IC.ordinal()] | bit(TRANSPORT) | bit(ALCOHOL_BEVERAGE);
+        ALLOWED[Level.C.ordinal()] = -1L;
+    }
+
+    static int categoryId(String category) {
+        return CATEGORY_IDS.getOrDefault(category.toLowerCase(Locale.ROOT), OTHER);
+    }
+
+    static boolean refundable(Level level, int categoryId) {
+        return (ALLOWED[level.ordinal()] & bit(categoryId)) != 0;
+    }
+
+    private static long bit(int categoryId) {
+        return 1L << categoryId;
+    }
+}
 
 public class ExpensesManagementSystemTest {
 
@@ -271,14 +310,77 @@ public class ExpensesManagementSystemTest {
 
         public static final Comparator<Wrapper> BY_TOTAL_AMT_DESC =
                 Comparator.comparing(Wrapper::getTotalAmount).reversed();
+
+        // ties broken by the employee, so two different employees never compare as equal in a TreeSet
+        public static final Comparator<Wrapper> BY_TOTAL_AMT_DESC_THEN_EMPLOYEE = BY_TOTAL_AMT_DESC
+                .thenComparing((Wrapper w) -> w.employee.name)
+                .thenComparing(w -> w.employee.jobTitle)
+                .thenComparing(w -> w.employee.level);
     }
+    static class TravelIntervals {
+        // start -> end of an employee's trips; overlapping or touching trips are merged into one,
+        // so the trip that could contain a date is always the one starting at or right before it
+        private final TreeMap<LocalDateTime, LocalDateTime> trips = new TreeMap<>();
+
+        void add(LocalDateTime start, LocalDateTime end) {
+            // TravelExpense.isDuring still matches exactly start and end of a trip that ends before it starts,
+            // so such a trip blocks those two instants
+            if (end.isBefore(start)) {
+                add(start, start);
+                add(end, end);
+                return;
+            }
+            LocalDateTime from = start;
+            LocalDateTime to = end;
+
+            Map.Entry<LocalDateTime, LocalDateTime> before = trips.floorEntry(from);
+            if (before != null && !before.getValue().isBefore(from))
+                from = before.getKey();
+
+            Map.Entry<LocalDateTime, LocalDateTime> next;
+            while ((next = trips.ceilingEntry(from)) != null && !next.getKey().isAfter(to)) {
+                if (next.getValue().isAfter(to))
+                    to = next.getValue();
+                trips.remove(next.getKey());
+            }
+            trips.put(from, to);
+        }
+
+        boolean contains(LocalDateTime ldt) {
+            Map.Entry<LocalDateTime, LocalDateTime> trip = trips.floorEntry(ldt);
+            return trip != null && !trip.getValue().isBefore(ldt);
+        }
+    }
+
     static class ExpenseManagementSystem {
         private final float maxReceiptAmount;
         private final List<Expense> expenses;
+        private final Map<Employee, TravelIntervals> travel;
+        // kept up to date on every add, so nothing is regrouped or resorted when they are asked for;
+        // the running sums are compensated like Collectors.summingDouble, so the totals come out the same
+        private final Map<Employee, DoubleSummaryStatistics> sums;
+        private final Map<Employee, Double> refunds;
+        private final TreeSet<Wrapper> ranking;
 
         ExpenseManagementSystem(float maxReceiptAmount) {
             this.maxReceiptAmount = maxReceiptAmount;
             expenses = new ArrayList<>();
+            travel = new HashMap<>();
+            sums = new HashMap<>();
+            refunds = new HashMap<>();
+            ranking = new TreeSet<>(Wrapper.BY_TOTAL_AMT_DESC_THEN_EMPLOYEE);
+        }
+
+        private void addRefund(Expense expense) {
+            Employee e = expense.getE();
+            Double old = refunds.get(e);
+            if (old != null)
+                ranking.remove(new Wrapper(e, old));
+            DoubleSummaryStatistics sum = sums.computeIfAbsent(e, k -> new DoubleSummaryStatistics());
+            sum.accept(expense.totalAmount());
+            double total = sum.getSum();
+            refunds.put(e, total);
+            ranking.add(new Wrapper(e, total));
         }
 
         public void addTravelExpense(
@@ -287,38 +389,49 @@ public class ExpensesManagementSystemTest {
         ) throws NotSupportedExpenseException {
             if (amount > maxReceiptAmount)
                 throw new NotSupportedExpenseException("totalAmount exceeds the limit.");
+            // the refund is computed right away, so a country without an allowance has to be turned away
+            // here, before anything is recorded, instead of failing half way through the updates
+            if (!DailyExpensesPerCountry.ALLOWANCE.containsKey(country))
+                throw new NotSupportedExpenseException("No daily allowance for " + country + ".");
             TravelExpense te = new TravelExpense(e, description, amount, start, end, country);
             expenses.add(te);
+            addRefund(te);
+            travel.computeIfAbsent(e, k -> new TravelIntervals()).add(start, end);
         }
 
         public void addReceiptExpense(Employee e, String description, Receipt r) throws NotSupportedExpenseException {
             RegularExpense re = new RegularExpense(e, description, r);
 
-            if (expenses.stream().anyMatch(expense -> expense.isDuring(r.date)))
+            TravelIntervals trips = travel.get(e);
+            if (trips != null && trips.contains(r.date))
                 throw new NotSupportedExpenseException("Can not refund during travel.");
             if (r.totalAmount() > maxReceiptAmount)
                 throw new NotSupportedExpenseException("totalAmount exceeds the limit.");
 
             expenses.add(re);
+            addRefund(re);
         }
 
         public void printRefunds() {
-            Map<Employee, Double> init = totalRefundsPerEmployee();
-
-            List<Wrapper> res = new ArrayList<>();
-            init.keySet().forEach(k -> res.add(new Wrapper(k, init.get(k))));
-
-            res.sort(Wrapper.BY_TOTAL_AMT_DESC);
-            res.forEach(System.out::println);
+            ranking.forEach(System.out::println);
 
             // метод кој ги печати трошоците на вработените во форматот како во тест примерите, подредени според
             // износот кој компанијата ќе го рефундира за реализираниот трошок, во опаѓачки редослед.
         }
 
+        // the k employees with the highest refunds, highest first
+        public List<Wrapper> topRefunds(int k) {
+            return ranking.stream().limit(k).collect(Collectors.toList());
+        }
+
+        public double refundFor(Employee e) {
+            return refunds.getOrDefault(e, 0.0);
+        }
+
         public Map<Employee, Double> totalRefundsPerEmployee() {
             // метод кој враќа мапа во која клучеви се сите вработени,
             // а вредности се вкупните износи кои им се исплатени за рефундација на трошоци на соодветните вработени.
-            return expenses.stream().collect(Collectors.groupingBy(Expense::getE, Collectors.summingDouble(Expense::totalAmount)));
+            return Collections.unmodifiableMap(refunds);
         }
     }
 
@@ -375,31 +488,26 @@ public class ExpensesManagementSystemTest {
 
     public static class RegularExpense extends Expense {
         private final Receipt r;
+        private final double refundable;
 
         RegularExpense(Employee e, String description, Receipt r) {
             super(e, description);
             this.r = r;
+            this.refundable = refundableAmount();
+        }
+
+        // the receipt does not change after it is filed, so this is computed once;
+        // DoubleStream.sum() is compensated, a plain += would print e.g. 0.6000000000000001 for 0.1+0.2+0.3
+        private double refundableAmount() {
+            return r.items.stream()
+                    .filter(i -> RefundPolicy.refundable(e.level, i.categoryId))
+                    .mapToDouble(i -> i.price)
+                    .sum();
         }
 
         @Override
         public double totalAmount() {
-            BiPredicate<Item, Employee> canBeRefunded = (i, e) -> {
-                if (e.level.equals(Level.C))
-                    return true;
-                if (e.level.equals(Level.IC))
-                    return i.category.equalsIgnoreCase("food") ||
-                            i.category.equalsIgnoreCase("non-alcohol beverage");
-                if (e.level.equals(Level.M))
-                    return i.category.equalsIgnoreCase("food") ||
-                            i.category.equalsIgnoreCase("non-alcohol beverage") ||
-                            i.category.equalsIgnoreCase("transport") ||
-                            i.category.equalsIgnoreCase("alcohol beverage");
-                return false;
-                //          Вработените од ниво IC имаат право да купуваат само ставки од категориите food и non-alcohol beverage.
-                //          Вработените од ниво M имаат право и на ставки од категориите transport и alcohol beverage.
-                //          Вработените од ниво C немаат ограничувања на категории.
-            };
-            return r.items.stream().filter(i -> canBeRefunded.test(i, e)).mapToDouble(i -> i.price).sum();
+            return refundable;
         }
         //      За трошоци направени со фискална сметка: Компанијата ќе ги прегледа сите ставки од фискалната сметка и ќе ги
         //      рефундира само ставките од категориите за кои вработениот има право да прави трошоци.
@@ -1,5 +1,25 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
 
 public class FakeApiPing {
 
@@ -33,13 +53,1055 @@ public class FakeApiPing {
             String response = "VALUE_" + parameter;
             return new ApiResult(requestId, true, response);
         }
+
+        // One round trip for many requests: the backend works on them together, so the batch takes as long
+        // as its slowest parameter
+        public static List<ApiResult> getBatch(int[] requestIds, int[] parameters) throws InterruptedException {
+            int slowest = Arrays.stream(parameters).max().orElse(0);
+            Thread.sleep(slowest * 100L);
+
+            List<ApiResult> results = new ArrayList<>(requestIds.length);
+            for (int i = 0; i < requestIds.length; i++) {
+                results.add(new ApiResult(requestIds[i], true, "VALUE_" + parameters[i]));
+            }
+            return results;
+        }
+    }
+
+    // Anything that answers like Api.getBatch; results come back in the order of the requests
+    public interface BatchApiClient {
+        List<ApiResult> getBatch(int[] requestIds, int[] parameters) throws InterruptedException;
+    }
+
+    // Anything that answers like Api.get, so the client side layers (cache, ...) can wrap each other
+    public interface ApiClient {
+        ApiResult get(int requestId, int parameter) throws InterruptedException;
+    }
+
+    // Answers repeated parameters from a TTL cache bounded to maxEntries (least recently used goes first).
+    // Concurrent misses for the same parameter share one backend call: the first caller makes it,
+    // the others wait for its result.
+    public static class CachingApi implements ApiClient {
+        private final ApiClient backend;
+        private final long ttlNanos;
+        private final Map<Integer, CachedValue> cache;
+        private final ConcurrentHashMap<Integer, CompletableFuture<ApiResult>> inFlight = new ConcurrentHashMap<>();
+        private final LongAdder backendCalls = new LongAdder();
+
+        private static class CachedValue {
+            final String value;
+            final long expiresAt;
+
+            CachedValue(String value, long expiresAt) {
+                this.value = value;
+                this.expiresAt = expiresAt;
+            }
+        }
+
+        public CachingApi(ApiClient backend, long ttlMillis, int maxEntries) {
+            this.backend = backend;
+            this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+            this.cache = new LinkedHashMap<>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Integer, CachedValue> eldest) {
+                    return size() > maxEntries;
+                }
+            };
+        }
+
+        @Override
+        public ApiResult get(int requestId, int parameter) throws InterruptedException {
+            while (true) {
+                String cached = lookup(parameter);
+                if (cached != null)
+                    return new ApiResult(requestId, true, cached);
+
+                CompletableFuture<ApiResult> mine = new CompletableFuture<>();
+                CompletableFuture<ApiResult> shared = inFlight.putIfAbsent(parameter, mine);
+                if (shared == null)
+                    return callBackend(requestId, parameter, mine);
+
+                try {
+                    ApiResult result = shared.get();
+                    return new ApiResult(requestId, result.success, result.value);
+                } catch (ExecutionException e) {
+                    // the caller that owned the call was cancelled, try again (possibly as the owner)
+                    if (!(e.getCause() instanceof InterruptedException))
+                        throw new CompletionException(e.getCause());
+                }
+            }
+        }
+
+        public long backendCalls() {
+            return backendCalls.sum();
+        }
+
+        private ApiResult callBackend(int requestId, int parameter, CompletableFuture<ApiResult> mine)
+                throws InterruptedException {
+            try {
+                // it may have been cached between our lookup and taking ownership
+                String cached = lookup(parameter);
+                ApiResult result;
+                if (cached != null) {
+                    result = new ApiResult(requestId, true, cached);
+                } else {
+                    backendCalls.increment();
+                    result = backend.get(requestId, parameter);
+                    if (result.success)
+                        store(parameter, result.value);
+                }
+                mine.complete(result);
+                return result;
+            } catch (Throwable e) {
+                // anything, Errors included, so no coalesced caller is left waiting on a future nobody completes
+                mine.completeExceptionally(e);
+                throw e;
+            } finally {
+                inFlight.remove(parameter, mine);
+            }
+        }
+
+        private String lookup(int parameter) {
+            synchronized (cache) {
+                CachedValue cached = cache.get(parameter);
+                if (cached == null)
+                    return null;
+                if (System.nanoTime() - cached.expiresAt >= 0) {
+                    cache.remove(parameter);
+                    return null;
+                }
+                return cached.value;
+            }
+        }
+
+        private void store(int parameter, String value) {
+            synchronized (cache) {
+                cache.put(parameter, new CachedValue(value, System.nanoTime() + ttlNanos));
+            }
+        }
+    }
+
+    // Sends a backup call when the primary is slower than the given percentile of recent latencies, takes
+    // the first success and cancels the other one. Backups are capped at maxHedgeRatio of all calls, so the
+    // extra load stays predictable; until enough latencies are recorded no backups are sent.
+    public static class HedgingApi implements ApiClient {
+        private static final int WINDOW = 1024;
+        private static final int MIN_SAMPLES = 32;
+
+        private final ApiClient backend;
+        private final ExecutorService executor;
+        private final double percentile;
+        private final double maxHedgeRatio;
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder hedges = new LongAdder();
+
+        private final long[] latencies = new long[WINDOW]; // guarded by itself
+        private long recorded;
+        private volatile long hedgeDelayNanos = -1;
+
+        public HedgingApi(ApiClient backend, ExecutorService executor, double percentile, double maxHedgeRatio) {
+            this.backend = backend;
+            this.executor = executor;
+            this.percentile = percentile;
+            this.maxHedgeRatio = maxHedgeRatio;
+        }
+
+        @Override
+        public ApiResult get(int requestId, int parameter) throws InterruptedException {
+            calls.increment();
+            CompletionService<ApiResult> race = new ExecutorCompletionService<>(executor);
+            List<Future<ApiResult>> attempts = new ArrayList<>(2);
+            attempts.add(race.submit(() -> timed(requestId, parameter)));
+            try {
+                long delay = hedgeDelayNanos;
+                Future<ApiResult> done = delay < 0 ? race.take() : race.poll(delay, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    if (hedges.sum() < maxHedgeRatio * calls.sum()) {
+                        hedges.increment();
+                        attempts.add(race.submit(() -> timed(requestId, parameter)));
+                    }
+                    done = race.take();
+                }
+
+                for (int finished = 1; ; finished++) {
+                    try {
+                        ApiResult result = done.get();
+                        if (result.success || finished == attempts.size())
+                            return result;
+                    } catch (ExecutionException e) {
+                        if (finished == attempts.size())
+                            throw new CompletionException(e.getCause());
+                    }
+                    done = race.take();
+                }
+            } finally {
+                attempts.forEach(f -> f.cancel(true));
+            }
+        }
+
+        public long hedges() {
+            return hedges.sum();
+        }
+
+        // Attempts that lose the race and get cancelled are recorded too, with the time until the cancel:
+        // leaving them out would keep only the fast calls in the window and pull the hedge delay below the
+        // real percentile
+        private ApiResult timed(int requestId, int parameter) throws InterruptedException {
+            long start = System.nanoTime();
+            try {
+                return backend.get(requestId, parameter);
+            } finally {
+                record(System.nanoTime() - start);
+            }
+        }
+
+        private void record(long nanos) {
+            synchronized (latencies) {
+                latencies[(int) (recorded++ % WINDOW)] = nanos;
+                if (recorded >= MIN_SAMPLES && recorded % MIN_SAMPLES == 0) {
+                    long[] sorted = Arrays.copyOf(latencies, (int) Math.min(recorded, WINDOW));
+                    Arrays.sort(sorted);
+                    hedgeDelayNanos = sorted[(int) Math.min(sorted.length - 1, sorted.length * percentile / 100)];
+                }
+            }
+        }
+    }
+
+    // Retries failed calls up to maxAttempts times, sleeping a random time between zero and an exponentially
+    // growing cap (full jitter) before each retry, so retrying callers don't hit the backend in lockstep.
+    public static class RetryingApi implements ApiClient {
+        private final ApiClient backend;
+        private final int maxAttempts;
+        private final long baseDelayMillis;
+        private final long maxDelayMillis;
+
+        public RetryingApi(ApiClient backend, int maxAttempts, long baseDelayMillis, long maxDelayMillis) {
+            if (maxAttempts < 1)
+                throw new IllegalArgumentException("maxAttempts must be at least 1");
+            this.backend = backend;
+            this.maxAttempts = maxAttempts;
+            this.baseDelayMillis = baseDelayMillis;
+            this.maxDelayMillis = maxDelayMillis;
+        }
+
+        @Override
+        public ApiResult get(int requestId, int parameter) throws InterruptedException {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    ApiResult result = backend.get(requestId, parameter);
+                    if (result.success || attempt == maxAttempts)
+                        return result;
+                } catch (RuntimeException e) {
+                    if (attempt == maxAttempts)
+                        throw e;
+                }
+                long cap = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+                Thread.sleep(ThreadLocalRandom.current().nextLong(cap + 1));
+            }
+        }
+    }
+
+    // AIMD limit on the number of calls in flight: every call that comes back fine and not much slower than
+    // the long-term average latency of calls with the same parameter adds 1/limit (about +1 per round trip),
+    // an error or a slow call multiplies the limit by backoffRatio. Callers over the limit wait in acquire().
+    // The average is kept per parameter because the backend takes parameter*100ms by design, so a mixed
+    // batch would otherwise look slow whenever a large parameter follows small ones.
+    public static class AdaptiveLimiter {
+        private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition available = lock.newCondition();
+        private final int minLimit;
+        private final int maxLimit;
+        private final double tolerance;
+        private final double backoffRatio;
+
+        private double limit;
+        private int inFlight;
+        private int waiting;
+        private final Map<Integer, Double> averageLatencyNanos = new HashMap<>();
+
+        public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoffRatio) {
+            this.limit = initialLimit;
+            this.minLimit = minLimit;
+            this.maxLimit = maxLimit;
+            this.tolerance = tolerance;
+            this.backoffRatio = backoffRatio;
+        }
+
+        public void acquire() throws InterruptedException {
+            lock.lock();
+            try {
+                waiting++;
+                try {
+                    while (inFlight >= (int) limit) {
+                        available.await();
+                    }
+                } finally {
+                    waiting--;
+                }
+                inFlight++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public void release(int parameter, long latencyNanos, boolean ok) {
+            lock.lock();
+            try {
+                inFlight--;
+                Double average = averageLatencyNanos.get(parameter);
+                // the slack keeps scheduling jitter on near-zero latencies from counting as slow
+                boolean slow = average != null && latencyNanos > tolerance * average + SLACK_NANOS;
+                if (ok)
+                    averageLatencyNanos.put(parameter, average == null
+                            ? latencyNanos
+                            : average * 0.99 + latencyNanos * 0.01);
+                if (ok && !slow) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                } else {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                }
+                available.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int limit() {
+            lock.lock();
+            try {
+                return (int) limit;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int inFlight() {
+            lock.lock();
+            try {
+                return inFlight;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        public int queueDepth() {
+            lock.lock();
+            try {
+                return waiting;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public String toString() {
+            lock.lock();
+            try {
+                return String.format("LIMITER limit=%d inFlight=%d queued=%d parameters=%d",
+                        (int) limit, inFlight, waiting, averageLatencyNanos.size());
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Passes calls through an AdaptiveLimiter; a call that fails or gets cancelled counts as an error
+    public static class LimitedApi implements ApiClient {
+        private final ApiClient backend;
+        private final AdaptiveLimiter limiter;
+
+        public LimitedApi(ApiClient backend, AdaptiveLimiter limiter) {
+            this.backend = backend;
+            this.limiter = limiter;
+        }
+
+        @Override
+        public ApiResult get(int requestId, int parameter) throws InterruptedException {
+            limiter.acquire();
+            long start = System.nanoTime();
+            boolean ok = false;
+            try {
+                ApiResult result = backend.get(requestId, parameter);
+                ok = result.success;
+                return result;
+            } finally {
+                limiter.release(parameter, System.nanoTime() - start, ok);
+            }
+        }
+    }
+
+    // Collects single calls for up to maxWait (or until maxBatch calls are waiting) and sends them to the
+    // backend as one getBatch, then hands each caller its own result. A call in a batch finishes with the
+    // slowest call of that batch, so this trades some latency for far fewer round trips.
+    public static class BatchingApi implements ApiClient, AutoCloseable {
+        private final BatchApiClient backend;
+        private final int maxBatch;
+        private final long maxWaitNanos;
+        private final ExecutorService executor;
+        private final BlockingQueue<Pending> queue = new LinkedBlockingQueue<>();
+        private final Thread dispatcher;
+        private final LongAdder batches = new LongAdder();
+        private volatile boolean closed;
+
+        private static class Pending {
+            final int requestId;
+            final int parameter;
+            final CompletableFuture<ApiResult> result = new CompletableFuture<>();
+
+            Pending(int requestId, int parameter) {
+                this.requestId = requestId;
+                this.parameter = parameter;
+            }
+        }
+
+        public BatchingApi(BatchApiClient backend, int maxBatch, long maxWaitMillis, ExecutorService executor) {
+            this.backend = backend;
+            this.maxBatch = maxBatch;
+            this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+            this.executor = executor;
+            this.dispatcher = new Thread(this::dispatch, "api-batcher");
+            this.dispatcher.setDaemon(true);
+            this.dispatcher.start();
+        }
+
+        @Override
+        public ApiResult get(int requestId, int parameter) throws InterruptedException {
+            if (closed)
+                throw new IllegalStateException("batcher closed");
+            Pending pending = new Pending(requestId, parameter);
+            queue.add(pending);
+            // close() may have drained the queue between the check and the add; nothing would send this then
+            if (closed)
+                failQueued();
+            try {
+                return pending.result.get();
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            } catch (InterruptedException e) {
+                pending.result.cancel(false); // the dispatcher leaves it out if it was not sent yet
+                throw e;
+            }
+        }
+
+        public long batches() {
+            return batches.sum();
+        }
+
+        private void dispatch() {
+            List<Pending> batch = new ArrayList<>(maxBatch);
+            try {
+                while (true) {
+                    batch.add(queue.take());
+                    long deadline = System.nanoTime() + maxWaitNanos;
+                    while (batch.size() < maxBatch) {
+                        long remaining = deadline - System.nanoTime();
+                        Pending next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                        if (next == null)
+                            break;
+                        batch.add(next);
+                    }
+                    batch.removeIf(p -> p.result.isDone());
+                    if (!batch.isEmpty()) {
+                        List<Pending> sending = new ArrayList<>(batch);
+                        try {
+                            executor.execute(() -> send(sending));
+                        } catch (RejectedExecutionException e) {
+                            sending.forEach(p -> p.result.completeExceptionally(e));
+                        }
+                    }
+                    batch.clear();
+                }
+            } catch (InterruptedException e) {
+                batch.forEach(p -> p.result.completeExceptionally(e));
+            }
+        }
+
+        private void send(List<Pending> batch) {
+            batches.increment();
+            int[] requestIds = new int[batch.size()];
+            int[] parameters = new int[batch.size()];
+            for (int i = 0; i < batch.size(); i++) {
+                requestIds[i] = batch.get(i).requestId;
+                parameters[i] = batch.get(i).parameter;
+            }
+            try {
+                List<ApiResult> results = backend.getBatch(requestIds, parameters);
+                for (int i = 0; i < batch.size(); i++) {
+                    batch.get(i).result.complete(results.get(i));
+                }
+            } catch (InterruptedException | RuntimeException e) {
+                batch.forEach(p -> p.result.completeExceptionally(e));
+            }
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            dispatcher.interrupt();
+            failQueued();
+        }
+
+        private void failQueued() {
+            Pending left;
+            while ((left = queue.poll()) != null) {
+                left.result.completeExceptionally(new CancellationException("batcher closed"));
+            }
+        }
+    }
+
+    // Serves Api.get over HTTP on the loopback interface: GET /get?requestId=1&parameter=3 answers VALUE_3
+    // after the same parameter*100ms delay, GET /batch?requestIds=1,2&parameters=3,1 answers one value per
+    // line as Api.getBatch does. Each exchange runs on its own virtual thread.
+    public static class ApiServer implements AutoCloseable {
+        private final HttpServer server;
+        private final ExecutorService executor;
+
+        private ApiServer(HttpServer server, ExecutorService executor) {
+            this.server = server;
+            this.executor = executor;
+        }
+
+        // port 0 picks a free port, see baseUri()
+        public static ApiServer start(int port) throws IOException {
+            HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 1024);
+            ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+            server.createContext("/get", exchange -> {
+                Map<String, String> query = parseQuery(exchange);
+                try {
+                    ApiResult result = Api.get(Integer.parseInt(query.get("requestId")),
+                            Integer.parseInt(query.get("parameter")));
+                    respond(exchange, 200, result.value);
+                } catch (InterruptedException e) {
+                    respond(exchange, 503, "INTERRUPTED");
+                } catch (RuntimeException e) {
+                    respond(exchange, 400, "BAD_REQUEST");
+                }
+            });
+            server.createContext("/batch", exchange -> {
+                Map<String, String> query = parseQuery(exchange);
+                try {
+                    int[] requestIds = Arrays.stream(query.get("requestIds").split(","))
+                            .mapToInt(Integer::parseInt).toArray();
+                    int[] parameters = Arrays.stream(query.get("parameters").split(","))
+                            .mapToInt(Integer::parseInt).toArray();
+                    StringBuilder body = new StringBuilder();
+                    for (ApiResult result : Api.getBatch(requestIds, parameters)) {
+                        body.append(result.value).append('\n');
+                    }
+                    respond(exchange, 200, body.toString());
+                } catch (InterruptedException e) {
+                    respond(exchange, 503, "INTERRUPTED");
+                } catch (RuntimeException e) {
+                    respond(exchange, 400, "BAD_REQUEST");
+                }
+            });
+            server.setExecutor(executor);
+            server.start();
+            return new ApiServer(server, executor);
+        }
+
+        public URI baseUri() {
+            InetSocketAddress address = server.getAddress();
+            return URI.create("http://" + address.getHostString() + ":" + address.getPort());
+        }
+
+        static Map<String, String> parseQuery(HttpExchange exchange) {
+            Map<String, String> query = new HashMap<>();
+            String raw = exchange.getRequestURI().getRawQuery();
+            if (raw != null) {
+                for (String pair : raw.split("&")) {
+                    String[] kv = pair.split("=", 2);
+                    query.put(kv[0], kv.length > 1 ? kv[1] : "");
+                }
+            }
+            return query;
+        }
+
+        static void respond(HttpExchange exchange, int status, String body) throws IOException {
+            byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(bytes);
+            }
+        }
+
+        @Override
+        public void close() {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    // Non-blocking client for ApiServer on one shared java.net.http.HttpClient, which keeps connections
+    // alive between calls. It asks for HTTP/2, so a server that speaks h2c multiplexes every call over
+    // one connection; the JDK stand-in answers in HTTP/1.1 and gets a pool of kept-alive connections.
+    public static class HttpApi implements ApiClient, BatchApiClient {
+        private final HttpClient client;
+        private final URI baseUri;
+
+        public HttpApi(URI baseUri) {
+            this.baseUri = baseUri;
+            this.client = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .build();
+        }
+
+        public CompletableFuture<ApiResult> getAsync(int requestId, int parameter) {
+            HttpRequest request = HttpRequest.newBuilder(
+                            baseUri.resolve("/get?requestId=" + requestId + "&parameter=" + parameter))
+                    .GET()
+                    .build();
+            return send(request, response -> response.statusCode() == 200
+                    ? new ApiResult(requestId, true, response.body())
+                    : new ApiResult(requestId, false, "FAILED"));
+        }
+
+        public CompletableFuture<List<ApiResult>> getBatchAsync(int[] requestIds, int[] parameters) {
+            HttpRequest request = HttpRequest.newBuilder(baseUri.resolve("/batch?requestIds=" + join(requestIds)
+                            + "&parameters=" + join(parameters)))
+                    .GET()
+                    .build();
+            return send(request, response -> {
+                List<ApiResult> results = new ArrayList<>(requestIds.length);
+                String[] values = response.body().split("\n");
+                for (int i = 0; i < requestIds.length; i++) {
+                    results.add(response.statusCode() == 200
+                            ? new ApiResult(requestIds[i], true, values[i])
+                            : new ApiResult(requestIds[i], false, "FAILED"));
+                }
+                return results;
+            });
+        }
+
+        // Cancelling a thenApply stage does not reach the stage it came from, so a cancelled result also
+        // cancels the sendAsync future itself, which aborts the HTTP exchange
+        private <T> CompletableFuture<T> send(HttpRequest request, Function<HttpResponse<String>, T> parse) {
+            CompletableFuture<HttpResponse<String>> exchange =
+                    client.sendAsync(request, HttpResponse.BodyHandlers.ofString());
+            CompletableFuture<T> result = exchange.thenApply(parse);
+            result.whenComplete((value, error) -> {
+                if (result.isCancelled())
+                    exchange.cancel(true);
+            });
+            return result;
+        }
+
+        @Override
+        public ApiResult get(int requestId, int parameter) throws InterruptedException {
+            return await(getAsync(requestId, parameter));
+        }
+
+        @Override
+        public List<ApiResult> getBatch(int[] requestIds, int[] parameters) throws InterruptedException {
+            return await(getBatchAsync(requestIds, parameters));
+        }
+
+        private static <T> T await(CompletableFuture<T> call) throws InterruptedException {
+            try {
+                return call.get();
+            } catch (ExecutionException e) {
+                throw new CompletionException(e.getCause());
+            } catch (InterruptedException e) {
+                call.cancel(true);
+                throw e;
+            }
+        }
+
+        private static String join(int[] values) {
+            StringJoiner joiner = new StringJoiner(",");
+            for (int value : values) {
+                joiner.add(String.valueOf(value));
+            }
+            return joiner.toString();
+        }
+    }
+
+    // Log-linear histogram of nanosecond values in the HdrHistogram layout: 64 linear sub-buckets per power
+    // of two, so a percentile is within about 1.6% of the real value. Recording is lock-free.
+    public static class LatencyHistogram {
+        private static final int SUB_BUCKET_BITS = 7;
+        private static final int HALF = 1 << (SUB_BUCKET_BITS - 1);
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BUCKET_BITS + 1) * HALF + HALF);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long nanos) {
+            long value = Math.max(0, nanos);
+            counts.incrementAndGet(indexOf(value));
+            total.increment();
+            sum.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        public long count() {
+            return total.sum();
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public double mean() {
+            long count = count();
+            return count == 0 ? 0 : (double) sum.sum() / count;
+        }
+
+        public long percentile(double percentile) {
+            long count = count();
+            if (count == 0)
+                return 0;
+            long rank = Math.max(1, (long) Math.ceil(count * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return Math.min(highestEquivalent(i), max());
+            }
+            return max();
+        }
+
+        private static int indexOf(long value) {
+            int magnitude = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1));
+            return magnitude == 0 ? (int) value : magnitude * HALF + (int) (value >>> magnitude);
+        }
+
+        private static long highestEquivalent(int index) {
+            int magnitude = Math.max(0, index / HALF - 1);
+            long subBucket = index - (long) magnitude * HALF;
+            return ((subBucket + 1) << magnitude) - 1;
+        }
+    }
+
+    // Queue wait (submitted -> started), service time (started -> returned) and end-to-end latency of every
+    // call in a fan-out, plus the OK / FAILED / TIMEOUT split. Requests that time out count in the
+    // end-to-end histogram with the time the collector gave up on them.
+    public static class LatencyReport {
+        public final LatencyHistogram queueWait = new LatencyHistogram();
+        public final LatencyHistogram service = new LatencyHistogram();
+        public final LatencyHistogram endToEnd = new LatencyHistogram();
+        private final Map<Integer, Long> finishedAt = new ConcurrentHashMap<>();
+        private long startNanos;
+        private long elapsedNanos;
+        private int ok;
+        private int failed;
+        private int timeouts;
+
+        // Call right before handing the tasks to the executor
+        public List<Callable<ApiResult>> track(List<Callable<ApiResult>> tasks) {
+            startNanos = System.nanoTime();
+            List<Callable<ApiResult>> tracked = new ArrayList<>(tasks.size());
+            for (Callable<ApiResult> task : tasks) {
+                tracked.add(() -> {
+                    long started = System.nanoTime();
+                    ApiResult result = task.call();
+                    long finished = System.nanoTime();
+                    queueWait.record(started - startNanos);
+                    service.record(finished - started);
+                    finishedAt.put(result.requestId, finished);
+                    return result;
+                });
+            }
+            return tracked;
+        }
+
+        public void finish(List<ApiResult> results) {
+            elapsedNanos = System.nanoTime() - startNanos;
+            for (ApiResult r : results) {
+                if (r.success) {
+                    ok++;
+                } else if ("TIMEOUT".equals(r.value)) {
+                    timeouts++;
+                } else {
+                    failed++;
+                }
+                boolean timedOut = !r.success && "TIMEOUT".equals(r.value);
+                long finished = timedOut ? startNanos + elapsedNanos
+                        : finishedAt.getOrDefault(r.requestId, startNanos + elapsedNanos);
+                endToEnd.record(finished - startNanos);
+            }
+        }
+
+        public double timeoutRatio() {
+            int total = ok + failed + timeouts;
+            return total == 0 ? 0 : (double) timeouts / total;
+        }
+
+        public double throughputPerSecond() {
+            return elapsedNanos == 0 ? 0 : ok * 1e9 / elapsedNanos;
+        }
+
+        public String summary() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(String.format("REQUESTS ok=%d failed=%d timeouts=%d timeoutRatio=%.4f throughput=%.1f/s%n",
+                    ok, failed, timeouts, timeoutRatio(), throughputPerSecond()));
+            sb.append(line("QUEUE_WAIT", queueWait));
+            sb.append(line("SERVICE", service));
+            sb.append(line("END_TO_END", endToEnd));
+            return sb.toString();
+        }
+
+        public String toJson() {
+            return String.format(Locale.ROOT,
+                    "{\"ok\":%d,\"failed\":%d,\"timeouts\":%d,\"timeoutRatio\":%.6f,\"throughputPerSecond\":%.3f,"
+                            + "\"queueWait\":%s,\"service\":%s,\"endToEnd\":%s}",
+                    ok, failed, timeouts, timeoutRatio(), throughputPerSecond(),
+                    json(queueWait), json(service), json(endToEnd));
+        }
+
+        private static String line(String name, LatencyHistogram h) {
+            return String.format("%s count=%d p50=%.1fms p90=%.1fms p99=%.1fms p999=%.1fms max=%.1fms%n",
+                    name, h.count(), h.percentile(50) / 1e6, h.percentile(90) / 1e6,
+                    h.percentile(99) / 1e6, h.percentile(99.9) / 1e6, h.max() / 1e6);
+        }
+
+        private static String json(LatencyHistogram h) {
+            return String.format(Locale.ROOT,
+                    "{\"count\":%d,\"meanNanos\":%.1f,\"p50\":%d,\"p90\":%d,\"p99\":%d,\"p999\":%d,\"max\":%d}",
+                    h.count(), h.mean(), h.percentile(50), h.percentile(90),
+                    h.percentile(99), h.percentile(99.9), h.max());
+        }
+    }
+
+    // StructuredTaskScope-style owner of one batch of calls: fork() starts every call on its own virtual thread,
+    // joinUntil() waits for all of them or the deadline, whichever comes first, and then shuts the scope down,
+    // interrupting whatever is still running. close() returns only after every forked thread has ended,
+    // so no call outlives the batch that started it.
+    public static class FanOutScope<T> implements AutoCloseable {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition allDone = lock.newCondition();
+        private final List<Subtask<T>> subtasks = new ArrayList<>();
+        private int running;
+        private boolean shutdown;
+
+        public enum State {
+            RUNNING, SUCCESS, FAILED, CANCELLED
+        }
+
+        public static class Subtask<T> {
+            private volatile State state = State.RUNNING;
+            private T result;
+            private Throwable error;
+            private Thread thread;
+
+            public State state() {
+                return state;
+            }
+
+            public T get() {
+                if (state != State.SUCCESS)
+                    throw new IllegalStateException("subtask " + state);
+                return result;
+            }
+
+            public Throwable exception() {
+                return error;
+            }
+        }
+
+        public Subtask<T> fork(Callable<T> task) {
+            Subtask<T> subtask = new Subtask<>();
+            lock.lock();
+            try {
+                if (shutdown) {
+                    subtask.state = State.CANCELLED;
+                    return subtask;
+                }
+                subtask.thread = Thread.ofVirtual().unstarted(() -> run(subtask, task));
+                subtasks.add(subtask);
+                running++;
+                subtask.thread.start();
+            } finally {
+                lock.unlock();
+            }
+            return subtask;
+        }
+
+        public void joinUntil(long deadlineNanos) throws InterruptedException {
+            lock.lock();
+            try {
+                while (running > 0 && !shutdown) {
+                    long remaining = deadlineNanos - System.nanoTime();
+                    if (remaining <= 0)
+                        break;
+                    allDone.awaitNanos(remaining);
+                }
+            } finally {
+                lock.unlock();
+            }
+            shutdown();
+        }
+
+        public void shutdown() {
+            lock.lock();
+            try {
+                shutdown = true;
+                for (Subtask<T> subtask : subtasks) {
+                    if (subtask.state == State.RUNNING)
+                        subtask.thread.interrupt();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        // Still waits for every subtask when interrupted (they have all been interrupted already, so that is
+        // short) and restores the interrupt flag afterwards
+        @Override
+        public void close() {
+            shutdown();
+            boolean interrupted = false;
+            lock.lock();
+            try {
+                while (running > 0) {
+                    try {
+                        allDone.await();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+
+        private void run(Subtask<T> subtask, Callable<T> task) {
+            State outcome;
+            try {
+                subtask.result = task.call();
+                outcome = State.SUCCESS;
+            } catch (Throwable e) {
+                subtask.error = e;
+                outcome = isShutdown() ? State.CANCELLED : State.FAILED;
+            }
+            lock.lock();
+            try {
+                // a result that lands after the shutdown is dropped, like a cancelled future
+                subtask.state = shutdown && outcome == State.SUCCESS ? State.CANCELLED : outcome;
+                if (--running == 0)
+                    allDone.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private boolean isShutdown() {
+            lock.lock();
+            try {
+                return shutdown;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    // Same contract as collect(), but every call lives in one FanOutScope, so when the budget runs out the
+    // remaining calls are interrupted and have ended before this returns
+    public static List<ApiResult> collectScoped(List<Callable<ApiResult>> tasks, long budgetMillis)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        List<ApiResult> results = new ArrayList<>(tasks.size());
+        try (FanOutScope<ApiResult> scope = new FanOutScope<>()) {
+            List<FanOutScope.Subtask<ApiResult>> subtasks = new ArrayList<>(tasks.size());
+            for (Callable<ApiResult> task : tasks) {
+                subtasks.add(scope.fork(task));
+            }
+            scope.joinUntil(deadline);
+
+            for (int i = 0; i < subtasks.size(); i++) {
+                FanOutScope.Subtask<ApiResult> subtask = subtasks.get(i);
+                int requestId = i + 1;
+                switch (subtask.state()) {
+                    case SUCCESS:
+                        results.add(subtask.get());
+                        break;
+                    case FAILED:
+                        results.add(new ApiResult(requestId, false, "FAILED"));
+                        break;
+                    default:
+                        results.add(new ApiResult(requestId, false, "TIMEOUT"));
+                }
+            }
+        }
+        return results;
+    }
+
+    // The calls only sleep, so "virtual" gives every request its own virtual thread instead of
+    // queueing them behind one platform thread per core. "adaptive" needs the same: with a fixed pool
+    // the pool size, not the limiter, would cap the calls in flight.
+    public static ExecutorService newExecutor(Set<String> options) {
+        if (options.contains("virtual") || options.contains("adaptive"))
+            return Executors.newVirtualThreadPerTaskExecutor();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    }
+
+    // Runs the tasks (task i is request i + 1) and takes their results in completion order until the budget
+    // runs out. Whatever is still running then gets cancelled and reported as TIMEOUT, so there is exactly
+    // one ApiResult per request.
+    public static List<ApiResult> collect(ExecutorService executor, List<Callable<ApiResult>> tasks, long budgetMillis)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        CompletionService<ApiResult> completion = new ExecutorCompletionService<>(executor);
+        Map<Future<ApiResult>, Integer> pending = new HashMap<>();
+        for (int i = 0; i < tasks.size(); i++) {
+            pending.put(completion.submit(tasks.get(i)), i + 1);
+        }
+
+        List<ApiResult> results = new ArrayList<>(tasks.size());
+        while (!pending.isEmpty()) {
+            long remaining = deadline - System.nanoTime();
+            Future<ApiResult> f = remaining > 0
+                    ? completion.poll(remaining, TimeUnit.NANOSECONDS)
+                    : completion.poll();
+            if (f == null)
+                break;
+            int requestId = pending.remove(f);
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                results.add(new ApiResult(requestId, false, "FAILED"));
+            }
+        }
+
+        pending.forEach((f, requestId) -> {
+            f.cancel(true);
+            results.add(new ApiResult(requestId, false, "TIMEOUT"));
+        });
+        return results;
     }
 
     public static void main(String[] args) throws Exception {
         Scanner sc = new Scanner(System.in);
+        Set<String> options = new HashSet<>(Arrays.asList(args));
 
         int n = sc.nextInt(); // number of API calls
 
+        // "http" sends the calls to a local ApiServer instead of calling Api.get directly,
+        // "batch" groups them into getBatch calls;
+        // "adaptive", "retry", "hedge" and "cache" wrap the client in that order (cache ends up outermost)
+        ApiServer server = options.contains("http") ? ApiServer.start(0) : null;
+        HttpApi httpApi = server != null ? new HttpApi(server.baseUri()) : null;
+        ExecutorService clientExecutor = Executors.newVirtualThreadPerTaskExecutor();
+        BatchingApi batcher = options.contains("batch")
+                ? new BatchingApi(httpApi != null ? httpApi : Api::getBatch, 64, 5, clientExecutor)
+                : null;
+        ApiClient client = batcher != null ? batcher : httpApi != null ? httpApi : Api::get;
+        AdaptiveLimiter limiter = new AdaptiveLimiter(Runtime.getRuntime().availableProcessors(), 1, 10_000, 2.0, 0.9);
+        if (options.contains("adaptive"))
+            client = new LimitedApi(client, limiter);
+        if (options.contains("retry"))
+            client = new RetryingApi(client, 3, 10, 200);
+        if (options.contains("hedge"))
+            client = new HedgingApi(client, clientExecutor, 95, 0.1);
+        if (options.contains("cache"))
+            client = new CachingApi(client, 60_000, 10_000);
+        ApiClient api = client;
+
         List<Callable<ApiResult>> tasks = new ArrayList<>();
 
         for (int i = 0; i < n; i++) {
@@ -47,48 +1109,47 @@ public class FakeApiPing {
 
             // requestId is the loop index
             int requestId = i+1;
-            tasks.add(() -> Api.get(requestId, parameter));
+            tasks.add(() -> api.get(requestId, parameter));
             //TODO add a Callable that invokes the API get method in the tasks list
         }
 
-        ExecutorService executor =
-                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
-
-        //TODO submit all callables to the executor and get the Futures
-        List<Future<ApiResult>> futures = new ArrayList<>();
-        tasks.forEach(t -> futures.add(executor.submit(t)));
-
-        List<ApiResult> results = new ArrayList<>();
-        futures.forEach(f -> {
-            try {
-                results.add(f.get());
-            } catch (ExecutionException | InterruptedException e) {
-                throw new RuntimeException(e);
-            }
-        });
+        ExecutorService executor = newExecutor(options);
 
+        // one budget for the whole fan-out, not per future;
+        // "report" prints latency percentiles to stderr, "report=<file>" also writes them there as JSON
         long timeoutMillis = 200;
-
-        // todo implemented
-        for (int i = 0; i < futures.size(); i++) {
-            Future<ApiResult> f = futures.get(i);
-            int requestId = i + 1;
-
-            try {
-                results.add(f.get(timeoutMillis, TimeUnit.MILLISECONDS));
-            } catch (TimeoutException e) {
-                f.cancel(true);
-                results.add(new ApiResult(requestId, false, "TIMEOUT"));
-            } catch (ExecutionException | InterruptedException e) {
-                results.add(new ApiResult(requestId, false, "FAILED"));
+        boolean reporting = options.contains("report");
+        String reportFile = null;
+        for (String option : options) {
+            if (option.startsWith("budget="))
+                timeoutMillis = Long.parseLong(option.substring("budget=".length()));
+            if (option.startsWith("report=")) {
+                reporting = true;
+                reportFile = option.substring("report=".length());
             }
         }
 
-        // executor.awaitTermination(timeoutMillis, TimeUnit.MILLISECONDS);
-
-        //TODO get the ApiResult from all the futures and allow a max timeout of timeoutMillis
+        LatencyReport report = new LatencyReport();
+        // "scoped" runs the batch in a FanOutScope instead of on the executor
+        List<Callable<ApiResult>> toRun = reporting ? report.track(tasks) : tasks;
+        List<ApiResult> results = options.contains("scoped")
+                ? collectScoped(toRun, timeoutMillis)
+                : collect(executor, toRun, timeoutMillis);
+        if (reporting) {
+            report.finish(results);
+            System.err.print(report.summary());
+            if (reportFile != null)
+                Files.writeString(Paths.get(reportFile), report.toJson() + System.lineSeparator());
+        }
 
         executor.shutdown();
+        if (batcher != null)
+            batcher.close();
+        clientExecutor.shutdownNow();
+        if (server != null)
+            server.close();
+        if (options.contains("adaptive"))
+            System.err.println(limiter);
 
         // Sorting by requestId
         results.sort(Comparator.comparingInt(r -> r.requestId));
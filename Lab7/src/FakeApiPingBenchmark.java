@@ -0,0 +1,58 @@
+import java.util.*;
+import java.util.concurrent.*;
+
+// Fans out the same batch of Api.get calls on the pooled and on the virtual-thread executor, and
+// over real sockets to a local ApiServer ("http", on virtual threads), and prints the wall time of each
+// next to the slowest single call.
+//
+// Usage: java FakeApiPingBenchmark [requests=1000] [maxParameter=3] [modes=pooled,virtual,http]
+public class FakeApiPingBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        int requests = Integer.parseInt(options.getOrDefault("requests", "1000"));
+        int maxParameter = Integer.parseInt(options.getOrDefault("maxParameter", "3"));
+        String[] modes = options.getOrDefault("modes", "pooled,virtual,http").split(",");
+
+        Random random = new Random(42);
+        int[] parameters = new int[requests];
+        for (int i = 0; i < requests; i++) {
+            parameters[i] = 1 + random.nextInt(maxParameter);
+        }
+        long slowestMillis = Arrays.stream(parameters).max().orElse(0) * 100L;
+
+        System.out.printf("%-8s %9s %12s %14s%n", "mode", "requests", "wall(ms)", "slowest(ms)");
+        for (String mode : modes) {
+            Set<String> executorOptions = mode.equals("pooled") ? Set.of() : Set.of("virtual");
+            FakeApiPing.ApiServer server = mode.equals("http") ? FakeApiPing.ApiServer.start(0) : null;
+            FakeApiPing.ApiClient api = server != null
+                    ? new FakeApiPing.HttpApi(server.baseUri())
+                    : FakeApiPing.Api::get;
+            if (server != null)
+                api.get(0, 0); // warm up the client and the first connection
+
+            List<Callable<FakeApiPing.ApiResult>> tasks = new ArrayList<>(requests);
+            for (int i = 0; i < requests; i++) {
+                int requestId = i + 1;
+                int parameter = parameters[i];
+                tasks.add(() -> api.get(requestId, parameter));
+            }
+
+            ExecutorService executor = FakeApiPing.newExecutor(executorOptions);
+            long start = System.nanoTime();
+            for (Future<FakeApiPing.ApiResult> f : executor.invokeAll(tasks)) {
+                f.get();
+            }
+            long wallMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            executor.shutdown();
+            if (server != null)
+                server.close();
+
+            System.out.printf("%-8s %9d %12d %14d%n", mode, requests, wallMillis, slowestMillis);
+        }
+    }
+}
@@ -0,0 +1,38 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ForkJoinPool;
+
+// Counts a sparse file just over 2 GiB with TextCounter.FileCounter, so the totals have to go past
+// Integer.MAX_VALUE. The file is all zero bytes (one long word) followed by "a\nb".
+//
+// Usage: java FileCounterTest [sizeBytes=2147483648]
+public class FileCounterTest {
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long zeros = args.length > 0 ? Long.parseLong(args[0]) : 1L << 31;
+        byte[] tail = "a\nb".getBytes(StandardCharsets.US_ASCII);
+
+        Path file = Files.createTempFile("file-counter", ".txt");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(tail), zeros);
+            }
+
+            TextCounter.Counter c = new TextCounter.FileCounter(ForkJoinPool.commonPool()).count(1, file);
+            long expectedChars = zeros + tail.length;
+            System.out.printf("%d %d %d %d%n", c.textId, c.lines, c.words, c.chars);
+            if (c.lines != 2 || c.words != 2 || c.chars != expectedChars) {
+                System.out.println("MISMATCH expected 1 2 2 " + expectedChars);
+                System.exit(1);
+            }
+            System.out.println("OK");
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
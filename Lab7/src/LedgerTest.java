@@ -0,0 +1,59 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Opposite transfers between accounts that alias onto the same pair of stripes, with a totalBalance()
+// reader in between. With locks ordered by account id instead of stripe index this deadlocks.
+//
+// Usage: java LedgerTest [rounds=200000]
+public class LedgerTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200_000;
+
+        // 2048 accounts give 1024 stripes, so 0 and 1024 share stripe 0, 1 and 1025 share stripe 1
+        BankBalance.Ledger ledger = new BankBalance.Ledger(2048, 1_000);
+        long expectedTotal = ledger.totalBalance();
+        AtomicBoolean torn = new AtomicBoolean();
+
+        Thread forward = new Thread(() -> {
+            for (int i = 0; i < rounds; i++) {
+                ledger.transfer(1, 1024, 1);
+                ledger.transfer(1024, 1, 1);
+            }
+        });
+        Thread backward = new Thread(() -> {
+            for (int i = 0; i < rounds; i++) {
+                ledger.transfer(0, 1025, 1);
+                ledger.transfer(1025, 0, 1);
+            }
+        });
+        Thread auditor = new Thread(() -> {
+            for (int i = 0; i < rounds / 100; i++) {
+                if (ledger.totalBalance() != expectedTotal)
+                    torn.set(true);
+            }
+        });
+        Thread[] threads = {forward, backward, auditor};
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive()) {
+                System.out.println("DEADLOCK");
+                System.exit(1);
+            }
+        }
+
+        if (torn.get())
+            System.out.println("TORN TOTAL SEEN");
+        if (torn.get() || ledger.totalBalance() != expectedTotal) {
+            System.out.println("TOTAL MISMATCH " + ledger.totalBalance() + " != " + expectedTotal);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
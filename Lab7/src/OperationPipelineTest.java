@@ -0,0 +1,87 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hammers a BankBalance.OperationPipeline at the smallest capacity from many producers and checks the net
+// balance, then closes pipelines while producers are still submitting. Capacity 2 used to make the
+// completed state of one lap the free state of the next (a producer spun forever), and close() used to
+// strand a producer that got past the running check after the writer had stopped.
+//
+// Usage: java OperationPipelineTest [producers=8] [operations=50000] [closeRounds=200]
+public class OperationPipelineTest {
+
+    public static void main(String[] args) throws InterruptedException {
+        int producers = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        int operations = args.length > 1 ? Integer.parseInt(args[1]) : 50_000;
+        int closeRounds = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+
+        try {
+            new BankBalance.OperationPipeline(0, 2);
+            fail("capacity 2 accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        // Every producer deposits 2 and withdraws 1 per round, so withdrawals never fail and the
+        // expected balance is known up front
+        BankBalance.OperationPipeline pipeline = new BankBalance.OperationPipeline(0, 4);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            threads[p] = new Thread(() -> {
+                for (int i = 0; i < operations; i++) {
+                    pipeline.deposit(2);
+                    if (!pipeline.withdraw(1))
+                        fail("withdrawal refused with funds available");
+                }
+            });
+            threads[p].setDaemon(true);
+            threads[p].start();
+        }
+        joinAll(threads, "capacity 4");
+        pipeline.close();
+        long expected = (long) producers * operations;
+        if (pipeline.balance() != expected)
+            fail("balance " + pipeline.balance() + " != " + expected);
+
+        // Producers keep depositing 1 until close() turns them away; every deposit that returned must be
+        // in the balance and none of them may hang
+        for (int round = 0; round < closeRounds; round++) {
+            BankBalance.OperationPipeline closing = new BankBalance.OperationPipeline(0, 4);
+            AtomicLong accepted = new AtomicLong();
+            Thread[] racers = new Thread[producers];
+            for (int p = 0; p < producers; p++) {
+                racers[p] = new Thread(() -> {
+                    try {
+                        while (true) {
+                            closing.deposit(1);
+                            accepted.incrementAndGet();
+                        }
+                    } catch (IllegalStateException closed) {
+                        // expected once the pipeline is closed
+                    }
+                });
+                racers[p].setDaemon(true);
+                racers[p].start();
+            }
+            Thread.sleep(1);
+            closing.close();
+            joinAll(racers, "close round " + round);
+            if (closing.balance() != accepted.get())
+                fail("close round " + round + ": balance " + closing.balance() + " != " + accepted.get());
+        }
+
+        System.out.println("OK");
+    }
+
+    private static void joinAll(Thread[] threads, String what) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(120);
+        for (Thread thread : threads) {
+            thread.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+            if (thread.isAlive())
+                fail("HANG in " + what);
+        }
+    }
+
+    private static void fail(String message) {
+        System.out.println(message);
+        System.exit(1);
+    }
+}
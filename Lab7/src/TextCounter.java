@@ -1,24 +1,103 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class TextCounter {
 
-    // Result holder
+    // Result holder. Counters of neighbouring pieces of one text merge into the counter of the whole piece
+    // (empty() is the identity), so a text can be counted in parts: besides the totals a counter keeps
+    // what it knows about its edges, i.e. whether it starts with whitespace, ends inside a word and how many
+    // newlines it ends with.
     public static class Counter {
         public final int textId;
-        public final int lines;
-        public final int words;
-        public final int chars;
+        public final long lines;
+        public final long words;
+        public final long chars;
 
-        public Counter(int textId, int lines, int words, int chars) {
+        private final boolean mergeable;
+        private final long newlines;
+        private final long trailingNewlines; // newlines after the last char that is not a newline
+        private final boolean content; // has a char that is not a newline
+        private final long wordRuns;
+        private final boolean whitespace;
+        private final boolean startsWithWhitespace;
+        private final boolean endsInWord;
+
+        public Counter(int textId, long lines, long words, long chars) {
             this.textId = textId;
             this.lines = lines;
             this.words = words;
             this.chars = chars;
+            this.mergeable = false;
+            this.newlines = 0;
+            this.trailingNewlines = 0;
+            this.content = false;
+            this.wordRuns = 0;
+            this.whitespace = false;
+            this.startsWithWhitespace = false;
+            this.endsInWord = false;
+        }
+
+        Counter(int textId, long chars, long newlines, long trailingNewlines, boolean content, long wordRuns,
+                boolean whitespace, boolean startsWithWhitespace, boolean endsInWord) {
+            this.textId = textId;
+            this.chars = chars;
+            this.mergeable = true;
+            this.newlines = newlines;
+            this.trailingNewlines = trailingNewlines;
+            this.content = content;
+            this.wordRuns = wordRuns;
+            this.whitespace = whitespace;
+            this.startsWithWhitespace = startsWithWhitespace;
+            this.endsInWord = endsInWord;
+            // what split("\\n") and split("\\s+") give: trailing empty pieces are dropped, the empty piece
+            // in front of a leading separator is kept, and text without a separator is one piece
+            this.lines = newlines == 0 ? 1 : content ? newlines - trailingNewlines + 1 : 0;
+            this.words = !whitespace ? 1 : wordRuns == 0 ? 0 : wordRuns + (startsWithWhitespace ? 1 : 0);
+        }
+
+        public static Counter empty(int textId) {
+            return new Counter(textId, 0, 0, 0, false, 0, false, false, false);
+        }
+
+        // This counter followed by next, as if both pieces were counted as one text
+        public Counter merge(Counter next) {
+            if (!mergeable || !next.mergeable)
+                throw new IllegalStateException("only counters from count() or scan() can be merged");
+            if (chars == 0)
+                return next.textId == textId ? next : next.withTextId(textId);
+            if (next.chars == 0)
+                return this;
+            boolean joinedWord = endsInWord && !next.startsWithWhitespace;
+            return new Counter(textId,
+                    chars + next.chars,
+                    newlines + next.newlines,
+                    next.content ? next.trailingNewlines : trailingNewlines + next.newlines,
+                    content || next.content,
+                    wordRuns + next.wordRuns - (joinedWord ? 1 : 0),
+                    whitespace || next.whitespace,
+                    startsWithWhitespace,
+                    next.endsInWord);
+        }
+
+        private Counter withTextId(int id) {
+            return new Counter(id, chars, newlines, trailingNewlines, content, wordRuns, whitespace,
+                    startsWithWhitespace, endsInWord);
         }
 
         @Override
@@ -35,20 +114,676 @@ public class TextCounter {
     }
 
 
+    // Texts from this size on are split with a CountTask
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+
     public static Callable<Counter> getTextCounter(int textId, String text) {
-        //TODO
-        return () -> {
-            int lines = text.split("\\n").length ; // не сум сигурен за -1 (ставив за последната линија)
-            int words = text.split("\\s+").length;
-            int chars = text.length();
-            return new Counter(textId, lines, words, chars);
-        };
+        return () -> text.length() >= PARALLEL_THRESHOLD
+                ? ForkJoinPool.commonPool().invoke(new CountTask(textId, text, 0, text.length()))
+                : count(textId, text);
     }
 
+    // One pass over the chars, no regex and no substrings. Gives exactly what
+    // text.split("\\n").length and text.split("\\s+").length give.
+    public static Counter count(int textId, CharSequence text) {
+        return scan(textId, text, 0, text.length());
+    }
+
+    // Counter of text[from, to), mergeable with the counters of the ranges around it
+    public static Counter scan(int textId, CharSequence text, int from, int to) {
+        long newlines = 0;
+        long newlinesBeforeLastContent = 0; // newlines followed by something other than a newline
+        boolean content = false;
+        boolean whitespace = false;
+        long wordRuns = 0;
+        boolean inWord = false;
+
+        for (int i = from; i < to; i++) {
+            char c = text.charAt(i);
+            if (c == '\n') {
+                newlines++;
+            } else {
+                newlinesBeforeLastContent = newlines;
+                content = true;
+            }
+            if (isWhitespace(c)) {
+                whitespace = true;
+                inWord = false;
+            } else if (!inWord) {
+                inWord = true;
+                wordRuns++;
+            }
+        }
+
+        if (from == to)
+            return Counter.empty(textId);
+        return new Counter(textId, to - from, newlines, newlines - newlinesBeforeLastContent, content, wordRuns,
+                whitespace, isWhitespace(text.charAt(from)), inWord);
+    }
+
+    // What \s matches without UNICODE_CHARACTER_CLASS: [ \t\n\x0B\f\r]
+    static boolean isWhitespace(char c) {
+        return c == ' ' || (c >= '\t' && c <= '\r');
+    }
+
+    // Splits one text into halves until they are small enough to scan, then merges the halves back in order
+    public static class CountTask extends RecursiveTask<Counter> {
+        private static final long serialVersionUID = 1L;
+        static final int LEAF_SIZE = 1 << 16;
+
+        private final int textId;
+        private final transient CharSequence text; // tasks are never serialized, only forked
+        private final int from;
+        private final int to;
+
+        public CountTask(int textId, CharSequence text, int from, int to) {
+            this.textId = textId;
+            this.text = text;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected Counter compute() {
+            if (to - from <= LEAF_SIZE)
+                return scan(textId, text, from, to);
+            int middle = (from + to) >>> 1;
+            CountTask left = new CountTask(textId, text, from, middle);
+            left.fork();
+            Counter right = new CountTask(textId, text, middle, to).compute();
+            return left.join().merge(right);
+        }
+    }
+
+    // Counter of a text that keeps growing, e.g. a log: append() scans only the new fragment and merges it
+    // onto what was counted so far, so a word cut in two by an append still counts once
+    public static class IncrementalCounter {
+        private final ByteKernel kernel;
+        private Counter counted;
+
+        public IncrementalCounter(int textId) {
+            this.kernel = bestByteKernel();
+            this.counted = Counter.empty(textId);
+        }
+
+        public synchronized Counter append(CharSequence fragment) {
+            counted = counted.merge(scan(counted.textId, fragment, 0, fragment.length()));
+            return counted;
+        }
+
+        // Raw UTF-8, a multi-byte character may be split between two appends
+        public synchronized Counter append(ByteBuffer fragment) {
+            counted = counted.merge(kernel.scan(counted.textId, fragment));
+            return counted;
+        }
+
+        public synchronized Counter current() {
+            return counted;
+        }
+    }
+
+    // Counts UTF-8 bytes into a mergeable Counter, as count() would count the decoded text
+    public interface ByteKernel {
+        Counter scan(int textId, ByteBuffer bytes);
+    }
+
+    public static final ByteKernel SCALAR_KERNEL = FileCounter::scan;
+
+    // VectorTextKernel needs the incubating jdk.incubator.vector module (--add-modules jdk.incubator.vector);
+    // without it this returns null and callers stay on the scalar kernel
+    public static ByteKernel vectorKernel() {
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty())
+            return null;
+        try {
+            return (ByteKernel) Class.forName("VectorTextKernel").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
 
+    public static ByteKernel bestByteKernel() {
+        ByteKernel vector = vectorKernel();
+        return vector != null ? vector : SCALAR_KERNEL;
+    }
+
+    // Counts a file the way count() would count its UTF-8 content, without decoding it into a String:
+    // the file is memory-mapped in chunks that are scanned in parallel, and the chunk counters are merged
+    // in file order, which fixes up the words and trailing newlines that continue across a chunk boundary.
+    public static class FileCounter {
+        static final long CHUNK_BYTES = 64L << 20;
+
+        private final ForkJoinPool pool;
+        private final long chunkBytes;
+        private final ByteKernel kernel;
+
+        public FileCounter(ForkJoinPool pool) {
+            this(pool, CHUNK_BYTES, bestByteKernel());
+        }
+
+        FileCounter(ForkJoinPool pool, long chunkBytes, ByteKernel kernel) {
+            this.pool = pool;
+            this.chunkBytes = chunkBytes;
+            this.kernel = kernel;
+        }
+
+        public Counter count(int textId, Path file) throws IOException, InterruptedException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long size = channel.size();
+                int chunks = (int) ((size + chunkBytes - 1) / chunkBytes);
+                List<Counter> parts = pool.submit(() -> IntStream.range(0, chunks).parallel()
+                        .mapToObj(i -> kernel.scan(textId,
+                                map(channel, i * chunkBytes, Math.min(chunkBytes, size - i * chunkBytes))))
+                        .collect(Collectors.toList())).get();
+
+                Counter total = Counter.empty(textId);
+                for (Counter part : parts) {
+                    total = total.merge(part);
+                }
+                return total;
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException)
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+
+        private static ByteBuffer map(FileChannel channel, long offset, long length) {
+            try {
+                return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        static Counter scan(int textId, ByteBuffer bytes) {
+            int from = bytes.position();
+            int to = bytes.limit();
+            long chars = 0;
+            long newlines = 0;
+            long newlinesBeforeLastContent = 0;
+            boolean content = false;
+            boolean whitespace = false;
+            long wordRuns = 0;
+            boolean inWord = false;
+
+            for (int i = from; i < to; i++) {
+                byte b = bytes.get(i);
+                // one UTF-16 char per UTF-8 sequence, two for the 4-byte ones (surrogate pairs)
+                if ((b & 0xC0) != 0x80)
+                    chars++;
+                if ((b & 0xF8) == 0xF0)
+                    chars++;
+                if (b == '\n') {
+                    newlines++;
+                } else {
+                    newlinesBeforeLastContent = newlines;
+                    content = true;
+                }
+                if (isWhitespace((char) b)) {
+                    whitespace = true;
+                    inWord = false;
+                } else if (!inWord) {
+                    inWord = true;
+                    wordRuns++;
+                }
+            }
+
+            if (from == to)
+                return Counter.empty(textId);
+            return new Counter(textId, chars, newlines, newlines - newlinesBeforeLastContent, content, wordRuns,
+                    whitespace, isWhitespace((char) bytes.get(from)), inWord);
+        }
+    }
+
+    // Word counts across many texts, words being what split("\\s+") returns. Each worker takes texts off a
+    // shared index and counts them into its own HashMap, so workers never share a map and only one map per
+    // worker (not per text) is merged at the end; the top N come out of a min-heap of size N.
+    // topWordsApprox counts into one SpaceSaving sketch per worker instead, whose size stays fixed however
+    // many distinct words there are.
+    public static class WordFrequency {
+
+        public static class WordCount {
+            public final String word;
+            public final long count;
+            public final long error; // count is at most this much too high, 0 for exact counts
+
+            public WordCount(String word, long count) {
+                this(word, count, 0);
+            }
+
+            public WordCount(String word, long count, long error) {
+                this.word = word;
+                this.count = count;
+                this.error = error;
+            }
+
+            @Override
+            public String toString() {
+                return error == 0 ? word + " " + count : word + " " + count + " error<=" + error;
+            }
+        }
+
+        // Most frequent first, ties by word
+        static final Comparator<WordCount> BY_COUNT_DESC =
+                Comparator.comparingLong((WordCount w) -> w.count).reversed().thenComparing(w -> w.word);
+
+        public static void forEachWord(CharSequence text, Consumer<String> action) {
+            int start = -1;
+            for (int i = 0; i <= text.length(); i++) {
+                boolean boundary = i == text.length() || isWhitespace(text.charAt(i));
+                if (boundary && start >= 0) {
+                    action.accept(text.subSequence(start, i).toString());
+                    start = -1;
+                } else if (!boundary && start < 0) {
+                    start = i;
+                }
+            }
+        }
+
+        public static Map<String, Long> countWords(CharSequence text) {
+            Map<String, Long> counts = new HashMap<>();
+            forEachWord(text, word -> counts.merge(word, 1L, Long::sum));
+            return counts;
+        }
+
+        public static List<WordCount> topN(Map<String, Long> counts, int n) {
+            PriorityQueue<WordCount> heap = new PriorityQueue<>(BY_COUNT_DESC.reversed());
+            counts.forEach((word, count) -> {
+                heap.add(new WordCount(word, count));
+                if (heap.size() > n)
+                    heap.poll();
+            });
+            List<WordCount> top = new ArrayList<>(heap);
+            top.sort(BY_COUNT_DESC);
+            return top;
+        }
+
+        public static List<WordCount> topWords(List<String> texts, int n, int workers, ExecutorService executor)
+                throws InterruptedException, ExecutionException {
+            List<Map<String, Long>> perWorker = perWorker(texts, workers, executor, HashMap::new,
+                    (counts, text) -> forEachWord(text, word -> counts.merge(word, 1L, Long::sum)));
+
+            Map<String, Long> merged = perWorker.get(0);
+            for (Map<String, Long> counts : perWorker.subList(1, perWorker.size())) {
+                counts.forEach((word, count) -> merged.merge(word, count, Long::sum));
+            }
+            return topN(merged, n);
+        }
+
+        // Counts can only be too high, by at most the error of each entry
+        public static List<WordCount> topWordsApprox(List<String> texts, int n, int capacity, int workers,
+                                                     ExecutorService executor)
+                throws InterruptedException, ExecutionException {
+            List<SpaceSaving> perWorker = perWorker(texts, workers, executor, () -> new SpaceSaving(capacity),
+                    (sketch, text) -> forEachWord(text, word -> sketch.offer(word, 1)));
+
+            SpaceSaving merged = perWorker.get(0);
+            for (SpaceSaving sketch : perWorker.subList(1, perWorker.size())) {
+                merged.merge(sketch);
+            }
+            return merged.top(n);
+        }
+
+        // Runs min(workers, texts) tasks on the executor that each pull texts off a shared index into their
+        // own accumulator, so the number of accumulators depends on the workers, not on the texts
+        private static <A> List<A> perWorker(List<String> texts, int workers, ExecutorService executor,
+                                             Supplier<A> newAccumulator, BiConsumer<A, String> add)
+                throws InterruptedException, ExecutionException {
+            AtomicInteger next = new AtomicInteger();
+            List<Callable<A>> tasks = new ArrayList<>();
+            for (int w = 0; w < Math.max(1, Math.min(workers, texts.size())); w++) {
+                tasks.add(() -> {
+                    A accumulator = newAccumulator.get();
+                    for (int i = next.getAndIncrement(); i < texts.size(); i = next.getAndIncrement()) {
+                        add.accept(accumulator, texts.get(i));
+                    }
+                    return accumulator;
+                });
+            }
+
+            List<A> accumulators = new ArrayList<>(tasks.size());
+            for (Future<A> f : executor.invokeAll(tasks)) {
+                accumulators.add(f.get());
+            }
+            return accumulators;
+        }
+    }
+
+    // Space-Saving heavy hitters sketch: at most capacity words are tracked; a new word takes over the entry
+    // with the smallest count and inherits that count as its error. Entries sit in a min-heap by count,
+    // so finding the smallest is O(1) and an increment is one sift. A tracked count is never below the true
+    // count and at most error above it.
+    public static class SpaceSaving {
+        private static class Entry {
+            String word;
+            long count;
+            long error;
+            int index;
+        }
+
+        private final int capacity;
+        private final Map<String, Entry> entries = new HashMap<>();
+        private final Entry[] heap;
+        private int size;
+
+        public SpaceSaving(int capacity) {
+            if (capacity <= 0)
+                throw new IllegalArgumentException("capacity must be positive");
+            this.capacity = capacity;
+            this.heap = new Entry[capacity];
+        }
+
+        public void offer(String word, long count) {
+            Entry entry = entries.get(word);
+            if (entry != null) {
+                entry.count += count;
+                siftDown(entry.index);
+            } else if (size < capacity) {
+                entry = new Entry();
+                entry.word = word;
+                entry.count = count;
+                entry.index = size;
+                heap[size++] = entry;
+                entries.put(word, entry);
+                siftUp(entry.index);
+            } else {
+                Entry smallest = heap[0];
+                entries.remove(smallest.word);
+                smallest.word = word;
+                smallest.error = smallest.count;
+                smallest.count += count;
+                entries.put(word, smallest);
+                siftDown(0);
+            }
+        }
+
+        // Both sketches as if they had seen both streams: a word missing from a full sketch may have been
+        // seen there up to its smallest count, so that much is added to the word's count and error, and the
+        // capacity largest counts are kept
+        public void merge(SpaceSaving other) {
+            long missingHere = size == capacity ? heap[0].count : 0;
+            long missingThere = other.size == other.capacity ? other.heap[0].count : 0;
+
+            List<Entry> combined = new ArrayList<>(size + other.size);
+            for (int i = 0; i < size; i++) {
+                Entry entry = heap[i];
+                Entry theirs = other.entries.get(entry.word);
+                entry.count += theirs != null ? theirs.count : missingThere;
+                entry.error += theirs != null ? theirs.error : missingThere;
+                combined.add(entry);
+            }
+            for (int i = 0; i < other.size; i++) {
+                Entry theirs = other.heap[i];
+                if (entries.containsKey(theirs.word))
+                    continue;
+                Entry entry = new Entry();
+                entry.word = theirs.word;
+                entry.count = theirs.count + missingHere;
+                entry.error = theirs.error + missingHere;
+                combined.add(entry);
+            }
+
+            combined.sort(Comparator.comparingLong((Entry e) -> e.count).reversed());
+            entries.clear();
+            size = Math.min(capacity, combined.size());
+            for (int i = 0; i < size; i++) {
+                Entry entry = combined.get(i);
+                entry.index = i;
+                heap[i] = entry;
+                entries.put(entry.word, entry);
+            }
+            Arrays.fill(heap, size, capacity, null);
+            for (int i = size / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+        }
+
+        public List<WordFrequency.WordCount> top(int n) {
+            List<WordFrequency.WordCount> all = new ArrayList<>(size);
+            for (int i = 0; i < size; i++) {
+                all.add(new WordFrequency.WordCount(heap[i].word, heap[i].count, heap[i].error));
+            }
+            all.sort(WordFrequency.BY_COUNT_DESC);
+            return all.subList(0, Math.min(n, all.size()));
+        }
+
+        private void siftUp(int i) {
+            while (i > 0) {
+                int parent = (i - 1) / 2;
+                if (heap[parent].count <= heap[i].count)
+                    break;
+                swap(i, parent);
+                i = parent;
+            }
+        }
+
+        private void siftDown(int i) {
+            while (true) {
+                int smallest = i;
+                int left = 2 * i + 1;
+                int right = left + 1;
+                if (left < size && heap[left].count < heap[smallest].count)
+                    smallest = left;
+                if (right < size && heap[right].count < heap[smallest].count)
+                    smallest = right;
+                if (smallest == i)
+                    return;
+                swap(i, smallest);
+                i = smallest;
+            }
+        }
+
+        private void swap(int a, int b) {
+            Entry tmp = heap[a];
+            heap[a] = heap[b];
+            heap[b] = tmp;
+            heap[a].index = a;
+            heap[b].index = b;
+        }
+    }
+
+    // Spreads a batch of texts evenly over a fixed number of workers by size rather than by count: texts
+    // longer than targetChars are cut into ranges, shorter ones are packed together until a task holds about
+    // targetChars, and tasks are handed out largest first to the least loaded worker. The range counters of
+    // a text are merged back in order, so the results equal count() per text.
+    public static class BatchScheduler {
+        private final int workers;
+        private final int targetChars;
+
+        public BatchScheduler(int workers, int targetChars) {
+            if (workers <= 0 || targetChars <= 0)
+                throw new IllegalArgumentException("workers and targetChars must be positive");
+            this.workers = workers;
+            this.targetChars = targetChars;
+        }
+
+        public static class Text {
+            public final int textId;
+            public final String text;
+
+            public Text(int textId, String text) {
+                this.textId = textId;
+                this.text = text;
+            }
+        }
+
+        public static class WorkerStats {
+            public final int worker;
+            public final int tasks;
+            public final long chars;
+            public final long busyNanos;
+
+            WorkerStats(int worker, int tasks, long chars, long busyNanos) {
+                this.worker = worker;
+                this.tasks = tasks;
+                this.chars = chars;
+                this.busyNanos = busyNanos;
+            }
+        }
+
+        public static class Schedule {
+            public final List<Counter> results;
+            public final List<WorkerStats> workers;
+            public final long wallNanos;
+
+            Schedule(List<Counter> results, List<WorkerStats> workers, long wallNanos) {
+                this.results = results;
+                this.workers = workers;
+                this.wallNanos = wallNanos;
+            }
+
+            public String utilisation() {
+                StringBuilder sb = new StringBuilder();
+                for (WorkerStats w : workers) {
+                    sb.append(String.format("WORKER %d tasks=%d chars=%d busy=%.1fms utilisation=%.1f%%%n",
+                            w.worker, w.tasks, w.chars, w.busyNanos / 1e6,
+                            wallNanos == 0 ? 0 : 100.0 * w.busyNanos / wallNanos));
+                }
+                return sb.toString();
+            }
+        }
+
+        // A range of one text; counter is filled in by the worker that runs it
+        private static class Piece {
+            final int text;
+            final int from;
+            final int to;
+            Counter counter;
+
+            Piece(int text, int from, int to) {
+                this.text = text;
+                this.from = from;
+                this.to = to;
+            }
+        }
+
+        private static class Task {
+            final List<Piece> pieces = new ArrayList<>();
+            long chars;
+
+            void add(Piece piece) {
+                pieces.add(piece);
+                chars += piece.to - piece.from;
+            }
+        }
+
+        // Each worker queue becomes one task on the executor, which should have at least workers threads
+        public Schedule run(List<Text> texts, ExecutorService executor)
+                throws InterruptedException, ExecutionException {
+            long start = System.nanoTime();
+            List<List<Piece>> piecesPerText = new ArrayList<>(texts.size());
+            List<Task> tasks = new ArrayList<>();
+            Task small = new Task();
+            for (int t = 0; t < texts.size(); t++) {
+                int length = texts.get(t).text.length();
+                List<Piece> pieces = new ArrayList<>();
+                if (length > targetChars) {
+                    for (int from = 0; from < length; from += targetChars) {
+                        Task task = new Task();
+                        Piece piece = new Piece(t, from, Math.min(length, from + targetChars));
+                        task.add(piece);
+                        tasks.add(task);
+                        pieces.add(piece);
+                    }
+                } else {
+                    if (small.chars + length > targetChars && !small.pieces.isEmpty()) {
+                        tasks.add(small);
+                        small = new Task();
+                    }
+                    Piece piece = new Piece(t, 0, length);
+                    small.add(piece);
+                    pieces.add(piece);
+                }
+                piecesPerText.add(pieces);
+            }
+            if (!small.pieces.isEmpty())
+                tasks.add(small);
+
+            List<List<Task>> queues = assign(tasks);
+            List<Callable<Long>> perWorker = new ArrayList<>(workers);
+            for (List<Task> queue : queues) {
+                perWorker.add(() -> {
+                    long begin = System.nanoTime();
+                    for (Task task : queue) {
+                        for (Piece piece : task.pieces) {
+                            Text text = texts.get(piece.text);
+                            piece.counter = scan(text.textId, text.text, piece.from, piece.to);
+                        }
+                    }
+                    return System.nanoTime() - begin;
+                });
+            }
+            long[] busy = new long[workers];
+            List<Future<Long>> done = executor.invokeAll(perWorker);
+            for (int w = 0; w < workers; w++) {
+                busy[w] = done.get(w).get(); // also makes the workers' writes to the pieces visible here
+            }
+
+            List<Counter> results = new ArrayList<>(texts.size());
+            for (int t = 0; t < texts.size(); t++) {
+                Counter counter = Counter.empty(texts.get(t).textId);
+                for (Piece piece : piecesPerText.get(t)) {
+                    counter = counter.merge(piece.counter);
+                }
+                results.add(counter);
+            }
+
+            List<WorkerStats> stats = new ArrayList<>(workers);
+            for (int w = 0; w < workers; w++) {
+                List<Task> queue = queues.get(w);
+                stats.add(new WorkerStats(w, queue.size(), queue.stream().mapToLong(task -> task.chars).sum(), busy[w]));
+            }
+            return new Schedule(results, stats, System.nanoTime() - start);
+        }
+
+        // Longest processing time first: biggest task to the currently least loaded worker
+        private List<List<Task>> assign(List<Task> tasks) {
+            List<List<Task>> queues = new ArrayList<>(workers);
+            long[] load = new long[workers];
+            PriorityQueue<Integer> leastLoaded = new PriorityQueue<>(
+                    Comparator.<Integer>comparingLong(w -> load[w]).thenComparingInt(w -> w));
+            for (int w = 0; w < workers; w++) {
+                queues.add(new ArrayList<>());
+                leastLoaded.add(w);
+            }
+            tasks.sort(Comparator.comparingLong((Task task) -> task.chars).reversed());
+            for (Task task : tasks) {
+                int worker = leastLoaded.poll();
+                queues.get(worker).add(task);
+                load[worker] += task.chars;
+                leastLoaded.add(worker);
+            }
+            return queues;
+        }
+    }
 
     public static void main(String[] args) throws Exception {
+        // "files <path>..." counts the given files directly, numbered from 1 in argument order
+        if (args.length > 0 && args[0].equals("files")) {
+            FileCounter fileCounter = new FileCounter(ForkJoinPool.commonPool());
+            for (int i = 1; i < args.length; i++) {
+                Counter c = fileCounter.count(i, Paths.get(args[i]));
+                System.out.printf("%d %d %d %d%n", c.textId, c.lines, c.words, c.chars);
+            }
+            return;
+        }
+
+        // "top=N" also prints the N most frequent words over all texts, "sketch=K" counts them approximately
+        // with K tracked words, "balanced" counts with the size-aware BatchScheduler
+        int top = 0;
+        int sketch = 0;
+        boolean balanced = false;
+        for (String arg : args) {
+            if (arg.equals("balanced"))
+                balanced = true;
+            if (arg.startsWith("top="))
+                top = Integer.parseInt(arg.substring("top=".length()));
+            if (arg.startsWith("sketch="))
+                sketch = Integer.parseInt(arg.substring("sketch=".length()));
+        }
+
         Scanner sc = new Scanner(System.in);
+        List<BatchScheduler.Text> texts = new ArrayList<>();
 
         int n = sc.nextInt();       // number of texts
         sc.nextLine();              // consume newline
@@ -70,27 +805,44 @@ public class TextCounter {
                 }
             }
 
-            tasks.add(getTextCounter(textId, text.toString()));
+            // one String per text, shared by the counting task, the scheduler and the word counts
+            String content = text.toString();
+            if (!balanced)
+                tasks.add(getTextCounter(textId, content));
+            texts.add(new BatchScheduler.Text(textId, content));
             //TODO add a Callable<Counter> for each text read in the tasks list
         }
 
-        ExecutorService executor =
-                Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        int workers = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
 
 
-        //TODO invoke All tasks on the executor and create a List<Future<?>>
-        // tasks.forEach(executor::submit);
-        List<Future<Counter>> res = executor.invokeAll(tasks);
+        List<Counter> results;
+        if (balanced) {
+            BatchScheduler.Schedule schedule =
+                    new BatchScheduler(workers, 1 << 20).run(texts, executor);
+            results = new ArrayList<>(schedule.results);
+            System.err.print(schedule.utilisation());
+        } else {
+            //TODO invoke All tasks on the executor and create a List<Future<?>>
+            // tasks.forEach(executor::submit);
+            List<Future<Counter>> res = executor.invokeAll(tasks);
 
 
-        List<Counter> results = res.stream().map(f -> {
-            try {
-                return f.get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
-            }
-        }).collect(Collectors.toList());
-        //TODO extract results from the List<Future>
+            results = res.stream().map(f -> {
+                try {
+                    return f.get();
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new RuntimeException(e);
+                }
+            }).collect(Collectors.toList());
+            //TODO extract results from the List<Future>
+        }
+
+        List<String> topTexts = texts.stream().map(t -> t.text).collect(Collectors.toList());
+        List<WordFrequency.WordCount> topWords = top <= 0 ? List.of()
+                : sketch > 0 ? WordFrequency.topWordsApprox(topTexts, top, sketch, workers, executor)
+                : WordFrequency.topWords(topTexts, top, workers, executor);
 
         executor.shutdown();
 
@@ -105,5 +857,8 @@ public class TextCounter {
                     c.textId, c.lines, c.words, c.chars
             );
         }
+        for (WordFrequency.WordCount w : topWords) {
+            System.out.println("TOP " + w);
+        }
     }
 }
@@ -0,0 +1,88 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+// Compares the old split() based counting with TextCounter.count and the fork/join CountTask
+// on generated multi-MB texts, then the scalar and the SIMD byte kernels on the same text as UTF-8.
+//
+// Usage: java [--add-modules jdk.incubator.vector] TextCounterBenchmark [megabytes=8] [iterations=10]
+public class TextCounterBenchmark {
+
+    // What getTextCounter used to do
+    static TextCounter.Counter splitCount(int textId, String text) {
+        int lines = text.split("\\n").length;
+        int words = text.split("\\s+").length;
+        int chars = text.length();
+        return new TextCounter.Counter(textId, lines, words, chars);
+    }
+
+    static String generate(int megabytes) {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder(megabytes << 20);
+        while (sb.length() < megabytes << 20) {
+            int wordLength = 1 + random.nextInt(10);
+            for (int i = 0; i < wordLength; i++) {
+                sb.append((char) ('a' + random.nextInt(26)));
+            }
+            sb.append(random.nextInt(12) == 0 ? '\n' : ' ');
+        }
+        return sb.toString();
+    }
+
+    interface Kernel {
+        TextCounter.Counter count(String text);
+    }
+
+    static long bestMillis(Kernel kernel, String text, int iterations) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < iterations; i++) {
+            long start = System.nanoTime();
+            TextCounter.Counter c = kernel.count(text);
+            long elapsed = System.nanoTime() - start;
+            if (c.chars != text.length())
+                throw new IllegalStateException();
+            best = Math.min(best, elapsed);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(best);
+    }
+
+    public static void main(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            String[] kv = arg.split("=", 2);
+            options.put(kv[0], kv.length > 1 ? kv[1] : "");
+        }
+        int megabytes = Integer.parseInt(options.getOrDefault("megabytes", "8"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "10"));
+
+        String text = generate(megabytes);
+        TextCounter.Counter expected = splitCount(1, text);
+        TextCounter.Counter actual = TextCounter.count(1, text);
+        if (expected.lines != actual.lines || expected.words != actual.words)
+            throw new IllegalStateException(expected + " != " + actual);
+
+        Map<String, Kernel> kernels = new LinkedHashMap<>();
+        kernels.put("split", t -> splitCount(1, t));
+        kernels.put("singlePass", t -> TextCounter.count(1, t));
+        kernels.put("forkJoin", t -> ForkJoinPool.commonPool().invoke(new TextCounter.CountTask(1, t, 0, t.length())));
+
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer bytes = ByteBuffer.allocateDirect(utf8.length).put(utf8).flip();
+        TextCounter.ByteKernel vector = TextCounter.vectorKernel();
+        kernels.put("scalarBytes", t -> TextCounter.SCALAR_KERNEL.scan(1, bytes));
+        if (vector != null) {
+            kernels.put("vectorBytes", t -> vector.scan(1, bytes));
+        } else {
+            System.out.println("jdk.incubator.vector not available, skipping vectorBytes");
+        }
+
+        System.out.printf("%-12s %8s %10s %10s%n", "kernel", "MB", "best(ms)", "MB/s");
+        kernels.forEach((name, kernel) -> {
+            long millis = bestMillis(kernel, text, iterations);
+            System.out.printf("%-12s %8d %10d %10.0f%n",
+                    name, megabytes, millis, megabytes * 1000.0 / Math.max(1, millis));
+        });
+    }
+}
@@ -0,0 +1,118 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+// Checks that every TextCounter counting path gives exactly what text.split("\\n").length and
+// text.split("\\s+").length give, edge cases included: the empty text is 1 line and 1 word, a leading
+// separator keeps its empty piece, trailing empty pieces are dropped. Covered are count(), scan() + merge()
+// at random cuts, the fork/join CountTask and both byte kernels on the UTF-8 bytes, whole and cut at random
+// byte offsets. The vector kernel is only checked when run with --add-modules jdk.incubator.vector.
+//
+// Usage: java [--add-modules jdk.incubator.vector] TextCounterTest [texts=300000] [seed=1]
+public class TextCounterTest {
+    private static final String[] PIECES = {
+            "a", "bc", "word", " ", "  ", "\t", "\n", "\n\n", "\r", "\u000B", "\f", "é", "ж", "€", "😀"
+    };
+    private static final String[] EDGE_CASES = {
+            "", "\n", "\n\n", " ", "  ", "a", " a", "a ", "\na", "a\n", "a\n\n", "\n a \n", " \n ", "\t\r\f\u000B",
+            "😀", " 😀\n"
+    };
+
+    private static final List<String> failures = new ArrayList<>();
+
+    public static void main(String[] args) {
+        int texts = args.length > 0 ? Integer.parseInt(args[0]) : 300_000;
+        Random random = new Random(args.length > 1 ? Long.parseLong(args[1]) : 1);
+
+        List<TextCounter.ByteKernel> kernels = new ArrayList<>();
+        kernels.add(TextCounter.SCALAR_KERNEL);
+        TextCounter.ByteKernel vector = TextCounter.vectorKernel();
+        if (vector != null)
+            kernels.add(vector);
+        else
+            System.out.println("vector kernel not available, checking the scalar kernel only");
+
+        for (String text : EDGE_CASES) {
+            check(text, random, kernels);
+        }
+        for (int i = 0; i < texts && failures.size() < 10; i++) {
+            StringBuilder text = new StringBuilder();
+            int pieces = random.nextInt(i % 1000 == 0 ? 400 : 12);
+            for (int p = 0; p < pieces; p++) {
+                text.append(PIECES[random.nextInt(PIECES.length)]);
+            }
+            check(text.toString(), random, kernels);
+        }
+
+        // long enough for CountTask to split down to several leaves
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 4 * TextCounter.CountTask.LEAF_SIZE) {
+            big.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        String text = big.toString();
+        compare("CountTask", text, ForkJoinPool.commonPool().invoke(
+                new TextCounter.CountTask(1, text, 0, text.length())));
+        check(text, random, kernels);
+
+        if (!failures.isEmpty()) {
+            failures.forEach(System.out::println);
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+
+    private static void check(String text, Random random, List<TextCounter.ByteKernel> kernels) {
+        compare("count", text, TextCounter.count(1, text));
+
+        TextCounter.Counter merged = TextCounter.Counter.empty(1);
+        for (int[] range : cuts(text.length(), random)) {
+            merged = merged.merge(TextCounter.scan(1, text, range[0], range[1]));
+        }
+        compare("scan+merge", text, merged);
+
+        byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        for (TextCounter.ByteKernel kernel : kernels) {
+            String name = kernel.getClass().getSimpleName();
+            compare(name, text, kernel.scan(1, ByteBuffer.wrap(utf8)));
+
+            TextCounter.Counter bytesMerged = TextCounter.Counter.empty(1);
+            for (int[] range : cuts(utf8.length, random)) {
+                bytesMerged = bytesMerged.merge(kernel.scan(1, ByteBuffer.wrap(utf8, range[0], range[1] - range[0])));
+            }
+            compare(name + "+merge", text, bytesMerged);
+        }
+    }
+
+    // Consecutive ranges covering [0, length), empty ones included
+    private static List<int[]> cuts(int length, Random random) {
+        List<int[]> ranges = new ArrayList<>();
+        int from = 0;
+        do {
+            int to = random.nextInt(4) == 0 ? from : from + random.nextInt(length - from + 1);
+            ranges.add(new int[]{from, to});
+            from = to;
+        } while (from < length || random.nextBoolean() && ranges.size() < 3);
+        return ranges;
+    }
+
+    private static void compare(String path, String text, TextCounter.Counter counter) {
+        long lines = text.split("\\n").length;
+        long words = text.split("\\s+").length;
+        long chars = text.length();
+        if (counter.lines != lines || counter.words != words || counter.chars != chars) {
+            failures.add(String.format("%s on %s: got %d %d %d, split gives %d %d %d", path, escape(text),
+                    counter.lines, counter.words, counter.chars, lines, words, chars));
+        }
+    }
+
+    private static String escape(String text) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : text.toCharArray()) {
+            sb.append(c >= ' ' && c < 0x7F ? String.valueOf(c) : String.format("\\u%04X", (int) c));
+        }
+        return sb.append('"').toString();
+    }
+}
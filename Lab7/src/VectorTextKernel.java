@@ -0,0 +1,94 @@
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+import java.nio.ByteBuffer;
+
+// SIMD version of the TextCounter byte kernel: each step compares a whole vector of bytes (32 with AVX2,
+// 64 with AVX-512) against '\n' and the whitespace set and works on the resulting lane masks as bit sets.
+// A word starts on a non-whitespace lane whose left neighbour is whitespace, and the last lane of one
+// step is the left neighbour of the first lane of the next.
+//
+// Needs --add-modules jdk.incubator.vector at compile and run time; TextCounter.bestByteKernel() falls back
+// to the scalar kernel when the module is missing.
+public class VectorTextKernel implements TextCounter.ByteKernel {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED.length() <= 64
+            ? ByteVector.SPECIES_PREFERRED
+            : ByteVector.SPECIES_512; // lane masks have to fit in a long
+    private static final int LANES = SPECIES.length();
+    private static final long ALL_LANES = LANES == 64 ? -1L : (1L << LANES) - 1;
+    private static final int BLOCK = 64 * 1024;
+
+    @Override
+    public TextCounter.Counter scan(int textId, ByteBuffer bytes) {
+        int from = bytes.position();
+        int to = bytes.limit();
+        if (from == to)
+            return TextCounter.Counter.empty(textId);
+
+        byte[] block = new byte[Math.min(BLOCK, to - from)];
+        long chars = 0;
+        long newlines = 0;
+        long trailingNewlines = 0;
+        boolean content = false;
+        boolean whitespace = false;
+        long wordRuns = 0;
+        boolean previousWhitespace = true; // so a word at the very start counts as a word start
+
+        for (int offset = from; offset < to; offset += block.length) {
+            int length = Math.min(block.length, to - offset);
+            bytes.get(offset, block, 0, length);
+
+            int i = 0;
+            for (int bound = SPECIES.loopBound(length); i < bound; i += LANES) {
+                ByteVector v = ByteVector.fromArray(SPECIES, block, i);
+                long newlineBits = v.eq((byte) '\n').toLong();
+                VectorMask<Byte> space = v.eq((byte) ' ')
+                        .or(v.compare(VectorOperators.GE, (byte) '\t').and(v.compare(VectorOperators.LE, (byte) '\r')));
+                long whitespaceBits = space.toLong();
+
+                long continuation = v.and((byte) 0xC0).eq((byte) 0x80).toLong();
+                long fourByteLead = v.and((byte) 0xF8).eq((byte) 0xF0).toLong();
+                chars += LANES - Long.bitCount(continuation) + Long.bitCount(fourByteLead);
+
+                newlines += Long.bitCount(newlineBits);
+                long contentBits = ~newlineBits & ALL_LANES;
+                if (contentBits == 0) {
+                    trailingNewlines += LANES;
+                } else {
+                    content = true;
+                    trailingNewlines = LANES - 64 + Long.numberOfLeadingZeros(contentBits);
+                }
+
+                whitespace |= whitespaceBits != 0;
+                long leftIsWhitespace = (whitespaceBits << 1) | (previousWhitespace ? 1 : 0);
+                wordRuns += Long.bitCount(~whitespaceBits & leftIsWhitespace & ALL_LANES);
+                previousWhitespace = (whitespaceBits >>> (LANES - 1) & 1) != 0;
+            }
+
+            for (; i < length; i++) {
+                byte b = block[i];
+                if ((b & 0xC0) != 0x80)
+                    chars++;
+                if ((b & 0xF8) == 0xF0)
+                    chars++;
+                if (b == '\n') {
+                    newlines++;
+                    trailingNewlines++;
+                } else {
+                    content = true;
+                    trailingNewlines = 0;
+                }
+                boolean isWhitespace = TextCounter.isWhitespace((char) b);
+                whitespace |= isWhitespace;
+                if (!isWhitespace && previousWhitespace)
+                    wordRuns++;
+                previousWhitespace = isWhitespace;
+            }
+        }
+
+        return new TextCounter.Counter(textId, chars, newlines, trailingNewlines, content, wordRuns, whitespace,
+                TextCounter.isWhitespace((char) bytes.get(from)), !previousWhitespace);
+    }
+}